@@ -0,0 +1,353 @@
+/*
+ * Collection utility classes
+ * Copyright (C) 2016 Dane Zeke Liergaard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dzlier.markov;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Character-level variant of {@link MarkovChain}, which splits {@link CharSequence}s into their
+ * code points. Code points are read straight from the sequence and kept as ints, and generated
+ * items are appended to a {@link StringBuilder} as they are picked, so neither processing nor
+ * generation allocates an object per character.
+ *
+ * Each node keeps its children in parallel arrays of code points, child nodes and weights, which
+ * are scanned linearly while a node has few children. Past that, as in CompactWeightedList, code
+ * points are found through an open-addressing table of int indexes, and picks binary search the
+ * cumulative weights of the children, so nodes with a large alphabet of children stay fast.
+ */
+public class CharMarkovChain {
+
+  /** Picked instead of a child when the chain ends. */
+  private static final Node END = new Node(-1);
+  /** Largest number of children scanned linearly. Nodes with more are hashed. */
+  @VisibleForTesting static final int SMALL = 8;
+
+  @VisibleForTesting final Node mid;
+  @VisibleForTesting final Node root;
+
+  private final int maxDepth;
+  private int nodeCount;
+  private final ThreadLocal<StringBuilder> builder = ThreadLocal.withInitial(StringBuilder::new);
+  private Node[] cursors = new Node[0];
+
+  /**
+   * Create a {@link CharMarkovChain}. Max depth option limits the size of the trees the chain
+   * creates.
+   *
+   * @param maxDepth Maximum depth of chain.
+   */
+  public CharMarkovChain(int maxDepth) {
+    this.root = new Node(-1);
+    this.mid = new Node(-1);
+    this.nodeCount = 2;
+    this.maxDepth = Math.max(1, maxDepth);
+  }
+
+  /**
+   * Create a {@link CharMarkovChain} of unlimited depth.
+   */
+  public CharMarkovChain() {
+    this(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Adds the code points of item to the markov chain.
+   *
+   * @param item Sequence of characters to add.
+   */
+  public void process(CharSequence item) {
+    process(item, 1.0);
+  }
+
+  /**
+   * Similar to {@code process(CharSequence)}, but forces the given weight instead of using 1.
+   *
+   * @param item Sequence of characters to add.
+   * @param weight Forced added weight of item in chain.
+   */
+  public void process(CharSequence item, double weight) {
+    int size = Character.codePointCount(item, 0, item.length());
+    if (size == 0) {
+      root.end(weight);
+      return;
+    }
+    // Same sliding window of cursors as MarkovChain, one per start position still being extended.
+    int width = Math.min(maxDepth, size);
+    if (cursors.length < width) {
+      cursors = new Node[Math.max(width, cursors.length * 2)];
+    }
+    int index = 0;
+    for (int position = 0; position < size; position++) {
+      int codePoint = Character.codePointAt(item, index);
+      index += Character.charCount(codePoint);
+      cursors[position % width] = position == 0 ? root : mid;
+      int oldest = Math.max(0, position - maxDepth + 1);
+      for (int start = position; start >= oldest; start--) {
+        int slot = start % width;
+        Node node = cursors[slot].add(codePoint, weight);
+        if (node.suffix == null) {
+          node.suffix = start == position ? mid : cursors[(start + 1) % width];
+          nodeCount++;
+        }
+        cursors[slot] = node;
+      }
+    }
+    if (size <= maxDepth) {
+      cursors[0].end(weight);
+    }
+    for (int start = Math.max(1, size - maxDepth + 1); start < size; start++) {
+      cursors[start % width].end(weight);
+    }
+    mid.end(weight);
+    Arrays.fill(cursors, 0, width, null);
+  }
+
+  /**
+   * Generate a String of probabilistically sequenced characters, with the seed depth provided.
+   *
+   * @param depth Desired seed depth, up to max depth of tree.
+   * @return New String probabilistically resembling sample base, based on seed depth.
+   */
+  public String generate(int depth) {
+    StringBuilder generated = builder.get();
+    generated.setLength(0);
+    generate(depth, generated);
+    return generated.toString();
+  }
+
+  /**
+   * Generate a String of probabilistically sequenced characters, with maximum seed depth.
+   *
+   * @return New String probabilistically resembling sample base.
+   */
+  public String generate() {
+    return generate(maxDepth);
+  }
+
+  /**
+   * Appends a generated item to builder, as {@code generate(int)} would. Reusing one builder for
+   * many items avoids allocating anything but the builder's own storage.
+   *
+   * @param depth Desired seed depth, up to max depth of tree.
+   * @param builder Builder to append the generated characters to.
+   */
+  public void generate(int depth, StringBuilder builder) {
+    generate(depth, builder, ThreadLocalRandom.current()::nextDouble);
+  }
+
+  private void generate(int depth, StringBuilder builder, DoubleSupplier random) {
+    depth = Math.max(1, Math.min(depth, maxDepth));
+    int length = 0;
+    Node context = root;
+    Node node = root.pick(random.getAsDouble());
+    while (length < depth) {
+      if (node == null || node == END) {
+        return;
+      }
+      builder.appendCodePoint(node.codePoint);
+      length++;
+      context = node;
+      node = node.pick(random.getAsDouble());
+    }
+    // As in MarkovChain, the pick after depth links only decides whether the item ends here.
+    if (node == END) {
+      return;
+    }
+    node = context.suffix.pick(random.getAsDouble());
+    while (node != null && node != END) {
+      builder.appendCodePoint(node.codePoint);
+      node = node.suffix.pick(random.getAsDouble());
+    }
+  }
+
+  /**
+   * @return Number of nodes in both tries of this chain, including their roots.
+   */
+  public int nodeCount() {
+    return nodeCount;
+  }
+
+  @VisibleForTesting
+  Node get(CharSequence item) {
+    return root.get(item);
+  }
+
+  @VisibleForTesting
+  Node getMid(CharSequence item) {
+    return mid.get(item);
+  }
+
+  @VisibleForTesting
+  static final class Node {
+
+    @VisibleForTesting final int codePoint;
+    @VisibleForTesting int[] codePoints = new int[0];
+    @VisibleForTesting Node[] children = new Node[0];
+    @VisibleForTesting double[] weights = new double[0];
+    @VisibleForTesting int size;
+    @VisibleForTesting double endWeight;
+    private double total;
+    /**
+     * Index of each child plus one, keyed by code point hash, for nodes of more than SMALL
+     * children. Empty slots hold 0.
+     */
+    private int[] table;
+    /**
+     * Running sums of the child weights, for nodes of more than SMALL children. Built on the first
+     * pick after the weights change.
+     */
+    private double[] cumulative;
+    /**
+     * Node in mid of the context that is this node's context without its first code point. Null
+     * for the roots of both tries.
+     */
+    @VisibleForTesting Node suffix;
+
+    Node(int codePoint) {
+      this.codePoint = codePoint;
+    }
+
+    /**
+     * Adds weight to the child for codePoint, creating it if it does not exist yet.
+     */
+    Node add(int codePoint, double weight) {
+      int i = indexOf(codePoint);
+      if (i < 0) {
+        if (size == codePoints.length) {
+          int capacity = Math.max(2, size * 2);
+          codePoints = Arrays.copyOf(codePoints, capacity);
+          children = Arrays.copyOf(children, capacity);
+          weights = Arrays.copyOf(weights, capacity);
+        }
+        i = size++;
+        codePoints[i] = codePoint;
+        children[i] = new Node(codePoint);
+        if (table != null && size * 4 <= table.length * 3) {
+          index(i);
+        } else if (size > SMALL) {
+          table = new int[Integer.highestOneBit(size * 2) * 2];
+          for (int j = 0; j < size; j++) {
+            index(j);
+          }
+        }
+      }
+      weights[i] += weight;
+      total += weight;
+      cumulative = null;
+      return children[i];
+    }
+
+    void end(double weight) {
+      endWeight += weight;
+      total += weight;
+    }
+
+    Node get(CharSequence item) {
+      Node node = this;
+      for (int index = 0; node != null && index < item.length(); ) {
+        int codePoint = Character.codePointAt(item, index);
+        index += Character.charCount(codePoint);
+        int i = node.indexOf(codePoint);
+        node = i < 0 ? null : node.children[i];
+      }
+      return node;
+    }
+
+    /**
+     * Picks a child in proportion to its weight, or END in proportion to the end weight.
+     *
+     * @param uniform random value in [0, 1)
+     * @return Picked child, END, or null if this node has neither children nor end weight.
+     */
+    Node pick(double uniform) {
+      if (total <= 0) {
+        return null;
+      }
+      double remaining = uniform * total;
+      if (size > SMALL) {
+        double[] sums = cumulative;
+        if (sums == null) {
+          sums = new double[size];
+          double sum = 0.0;
+          for (int i = 0; i < size; i++) {
+            sums[i] = sum += weights[i];
+          }
+          cumulative = sums;
+        }
+        if (remaining < sums[size - 1]) {
+          // Binary search for the first child whose running sum is above remaining.
+          int low = 0;
+          int high = size - 1;
+          while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sums[middle] > remaining) {
+              high = middle;
+            } else {
+              low = middle + 1;
+            }
+          }
+          return children[low];
+        }
+        return endWeight > 0 ? END : children[size - 1];
+      }
+      for (int i = 0; i < size; i++) {
+        remaining -= weights[i];
+        if (remaining < 0) {
+          return children[i];
+        }
+      }
+      return endWeight > 0 || size == 0 ? END : children[size - 1];
+    }
+
+    private int indexOf(int codePoint) {
+      if (table != null) {
+        int mask = table.length - 1;
+        for (int slot = hash(codePoint) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+          if (codePoints[table[slot] - 1] == codePoint) {
+            return table[slot] - 1;
+          }
+        }
+        return -1;
+      }
+      for (int i = 0; i < size; i++) {
+        if (codePoints[i] == codePoint) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private void index(int index) {
+      int mask = table.length - 1;
+      int slot = hash(codePoints[index]) & mask;
+      while (table[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = index + 1;
+    }
+
+    private static int hash(int codePoint) {
+      // Spreads consecutive code points, which alphabets are made of, over the whole table.
+      int hash = codePoint * 0x9E3779B9;
+      return hash ^ (hash >>> 16);
+    }
+  }
+}
@@ -0,0 +1,282 @@
+/*
+ * Collection utility classes
+ * Copyright (C) 2016 Dane Zeke Liergaard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dzlier.markov;
+
+import com.dzlier.markov.MarkovChain.Composer;
+import com.google.common.annotations.VisibleForTesting;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Thread-safe variant of {@link MarkovChain}, where any number of threads may call {@code process}
+ * and {@code generate} at the same time. Children of each node are kept in a {@link
+ * ConcurrentHashMap} and weights in {@link DoubleAdder}s, so concurrent processing only contends
+ * when two threads create the same node at once. Each node keeps a snapshot of the running sums of
+ * its weights, read once from the adders and replaced on the first pick after its total changes,
+ * so that picks from unchanged nodes neither sum every adder nor walk every child.
+ *
+ * Generation may observe items that are only partially processed, in which case it ends the
+ * generated item early instead of failing. V's must not be null.
+ */
+public class ConcurrentMarkovChain<K, V> {
+
+  @VisibleForTesting final Node mid;
+  @VisibleForTesting final Node root;
+  @VisibleForTesting final Composer<K, V> composer;
+  /** Shared child that marks the end of a chain. */
+  private final Node end;
+
+  private final int maxDepth;
+
+  /**
+   * Create a {@link ConcurrentMarkovChain} that accepts and generates objects of type K by breaking
+   * them down into type V via the provided {@link Composer}. Max depth option limits the size of
+   * the trees the chain creates.
+   *
+   * @param composer Composer that can break down K's into V's, and vice versa. Must be safe to
+   * call from several threads.
+   * @param maxDepth Maximum depth of chain.
+   */
+  public ConcurrentMarkovChain(Composer<K, V> composer, int maxDepth) {
+    this.root = new Node(null, 0);
+    this.mid = new Node(null, 0);
+    this.end = new Node(null, 0);
+    this.composer = composer;
+    this.maxDepth = Math.max(1, maxDepth);
+  }
+
+  /**
+   * Create a {@link ConcurrentMarkovChain} that accepts and generates objects of type K by breaking
+   * them down into type V via the provided {@link Composer}.
+   *
+   * @param composer Composer that can break down K's into V's, and vice versa. Must be safe to
+   * call from several threads.
+   */
+  public ConcurrentMarkovChain(Composer<K, V> composer) {
+    this(composer, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Splits the provided item K into series of 0 or more V's, and adds them to the markov chain.
+   *
+   * @param item K to split.
+   */
+  public void process(K item) {
+    process(item, 1.0);
+  }
+
+  /**
+   * Similar to {@code process(K)}, but forces the given weight instead of using 1.
+   *
+   * @param item Item to be processed.
+   * @param weight Forced added weight of object in chain.
+   */
+  public void process(K item, double weight) {
+    List<V> chain = composer.separate(item);
+    int size = chain.size();
+    if (size <= maxDepth) {
+      root.add(chain, 0, size, weight).isEnd(weight);
+    } else {
+      root.add(chain, 0, maxDepth, weight);
+    }
+    for (int start = 1; start <= size; start++) {
+      Node node = mid.add(chain, start, start + Math.min(size - start, maxDepth), weight);
+      if (size - start < maxDepth) {
+        node.isEnd(weight);
+      }
+    }
+  }
+
+  /**
+   * Generate K of probabilistically sequenced components V, with the seed depth provided. Seed
+   * depth determines how many links back the chain looks when choosing a next segment.
+   *
+   * @param depth Desired seed depth, up to max depth of tree.
+   * @return New K probabilistically resembling sample base, based on seed depth.
+   */
+  public K generate(int depth) {
+    depth = Math.min(depth, maxDepth);
+    List<V> seed = new ArrayList<>();
+    Node node = root.pick();
+    while (seed.size() < depth) {
+      if (node == null || node == end) {
+        break;
+      }
+      seed.add(node.item);
+      node = node.pick();
+    }
+    // End node indicates natural end of chain.
+    if (node == end) {
+      return composer.join(seed);
+    }
+    node = pick(mid.get(seed, 1, seed.size()));
+    while (node != null && node != end) {
+      seed.add(node.item);
+      // The next context holds the last links picked, up to one less than depth, as in MarkovChain.
+      node = pick(node.depth < depth ? node : node.suffix(seed));
+    }
+    return composer.join(seed);
+  }
+
+  /**
+   * Generate a K comprised of probabilistically sequenced components V, with maximum seed depth.
+   *
+   * @return Item K probabilistically resembling sample base based on seed depth.
+   */
+  public K generate() {
+    return generate(Integer.MAX_VALUE);
+  }
+
+  private Node pick(Node node) {
+    return node == null ? null : node.pick();
+  }
+
+  @VisibleForTesting
+  class Node {
+
+    @VisibleForTesting final V item;
+    /** Number of links in this node's context. */
+    @VisibleForTesting final int depth;
+    @VisibleForTesting final Map<V, Node> children = new ConcurrentHashMap<>();
+    /** Weight of reaching this node from its parent. */
+    @VisibleForTesting final DoubleAdder weight = new DoubleAdder();
+    /** Weight of ending the chain after this node. */
+    @VisibleForTesting final DoubleAdder endWeight = new DoubleAdder();
+    /** Sum of the weights of all children, including the end weight. */
+    private final DoubleAdder total = new DoubleAdder();
+    /**
+     * Node in mid of the context that is this node's context without its first link, found the
+     * first time generation continues from it.
+     */
+    private volatile Node suffix;
+    /** Weights of the children and the end as of the last pick. */
+    private volatile Picks picks;
+
+    Node(V item, int depth) {
+      this.item = item;
+      this.depth = depth;
+    }
+
+    Node add(List<V> chain, int from, int to, double weight) {
+      Node node = this;
+      for (int i = from; i < to; i++) {
+        int depth = node.depth + 1;
+        Node child = node.children.computeIfAbsent(chain.get(i), item -> new Node(item, depth));
+        child.weight.add(weight);
+        node.total.add(weight);
+        node = child;
+      }
+      return node;
+    }
+
+    void isEnd(double weight) {
+      endWeight.add(weight);
+      total.add(weight);
+    }
+
+    Node get(List<V> chain, int from, int to) {
+      Node node = this;
+      for (int i = from; i < to && node != null; i++) {
+        node = node.children.get(chain.get(i));
+      }
+      return node;
+    }
+
+    /**
+     * @return Node in mid of this node's context without its first link, given links that end with
+     * this node's context, or null if no item processed so far has added it yet.
+     */
+    Node suffix(List<V> links) {
+      Node suffix = this.suffix;
+      if (suffix == null) {
+        // Nodes are never removed, so the suffix found stays the suffix of this node.
+        suffix = mid.get(links, links.size() - depth + 1, links.size());
+        this.suffix = suffix;
+      }
+      return suffix;
+    }
+
+    /**
+     * Picks a random child based on child weights, or the end node. Picks are made from one
+     * snapshot of the weights, which is taken again whenever the total weight of the node has
+     * changed since it was taken.
+     *
+     * @return Child picked, end node, or null if this node has no weight yet.
+     */
+    Node pick() {
+      double seen = total.sum();
+      Picks picks = this.picks;
+      if (picks == null || picks.seen != seen) {
+        picks = new Picks(this, seen);
+        this.picks = picks;
+      }
+      return picks.pick(ThreadLocalRandom.current().nextDouble());
+    }
+  }
+
+  /**
+   * Running sums of the weights of the children of a node, and the total with its end weight, as
+   * read once from their adders. Every pick from it sees the same weights.
+   */
+  private class Picks {
+
+    /** Total weight of the node read before its weights were. */
+    final double seen;
+    private final List<Node> children;
+    private final double[] sums;
+    private final double end;
+
+    Picks(Node node, double seen) {
+      this.seen = seen;
+      this.children = new ArrayList<>(node.children.values());
+      this.sums = new double[children.size()];
+      double sum = 0.0;
+      for (int i = 0; i < sums.length; i++) {
+        sums[i] = sum += children.get(i).weight.sum();
+      }
+      this.end = node.endWeight.sum();
+    }
+
+    Node pick(double uniform) {
+      double weights = sums.length == 0 ? 0.0 : sums[sums.length - 1];
+      if (weights + end <= 0) {
+        return null;
+      }
+      double value = uniform * (weights + end);
+      if (value >= weights) {
+        return end > 0 ? ConcurrentMarkovChain.this.end : children.get(sums.length - 1);
+      }
+      // Binary search for the first child whose running sum is above value.
+      int low = 0;
+      int high = sums.length - 1;
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (sums[middle] > value) {
+          high = middle;
+        } else {
+          low = middle + 1;
+        }
+      }
+      return children.get(low);
+    }
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Collection utility classes
+ * Copyright (C) 2016 Dane Zeke Liergaard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dzlier.markov;
+
+import com.google.common.base.Throwables;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Bounded producer/consumer pipeline that feeds the records of a channel into a {@link
+ * MarkovChain}. One thread reads and splits records, a second parses them and separates them into
+ * V's, and the calling thread adds the V's to the chain, so reading and separating overlap with
+ * trie insertion. Records travel between stages in batches, through queues of bounded capacity.
+ */
+class CorpusPipeline<K, V> {
+
+  private static final int BUFFER_SIZE = 1 << 20;
+  private static final int BATCH_SIZE = 1024;
+  private static final int QUEUE_CAPACITY = 16;
+  private static final int GZIP_MAGIC = 0x1f8b;
+  /** Batch that marks the end of the input. Compared by identity. */
+  private static final List<?> DONE = Collections.unmodifiableList(new ArrayList<>());
+
+  private final MarkovChain<K, V> chain;
+  private final Function<String, K> parser;
+  private final String delimiter;
+  private final BlockingQueue<List<String>> records = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+  private final BlockingQueue<List<List<V>>> links = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+  CorpusPipeline(MarkovChain<K, V> chain, Function<String, K> parser, String delimiter) {
+    if (delimiter.isEmpty()) {
+      throw new IllegalArgumentException("Delimiter must not be empty");
+    }
+    this.chain = chain;
+    this.parser = parser;
+    this.delimiter = delimiter;
+  }
+
+  void run(ReadableByteChannel channel) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<?> reader = executor.submit(() -> {
+        try {
+          read(channel);
+        } finally {
+          records.put(done());
+        }
+        return null;
+      });
+      Future<?> separator = executor.submit(() -> {
+        try {
+          separate();
+        } finally {
+          links.put(done());
+        }
+        return null;
+      });
+      for (List<List<V>> batch = links.take(); batch != DONE; batch = links.take()) {
+        for (List<V> link : batch) {
+          chain.processLinks(link, 1.0);
+        }
+      }
+      // A failed separator leaves the reader blocked on a full queue, so it must be checked first.
+      separator.get();
+      reader.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while ingesting", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw Throwables.propagate(e.getCause());
+    } finally {
+      // Unblocks the background stages if the calling thread failed.
+      executor.shutdownNow();
+    }
+  }
+
+  private void read(ReadableByteChannel channel) throws IOException, InterruptedException {
+    ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    // Read at least enough bytes to recognize gzip input.
+    int read = 0;
+    while (bytes.position() < 2 && read >= 0) {
+      read = channel.read(bytes);
+    }
+    bytes.flip();
+    if (bytes.remaining() >= 2 && (bytes.getShort(0) & 0xffff) == GZIP_MAGIC) {
+      ByteArrayInputStream head = new ByteArrayInputStream(bytes.array(), 0, bytes.limit());
+      channel = Channels.newChannel(new GZIPInputStream(
+          new SequenceInputStream(head, Channels.newInputStream(channel)), BUFFER_SIZE));
+      bytes.clear().flip();
+    }
+
+    CharsetDecoder decoder = StandardCharsets.UTF_8
+        .newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    StringBuilder record = new StringBuilder();
+    List<String> batch = new ArrayList<>(BATCH_SIZE);
+    boolean eof = false;
+    while (!eof) {
+      bytes.compact();
+      eof = channel.read(bytes) < 0;
+      bytes.flip();
+      decoder.decode(bytes, chars, eof);
+      if (eof) {
+        decoder.flush(chars);
+      }
+      chars.flip();
+      batch = split(chars, record, batch);
+      chars.clear();
+    }
+    stripReturn(record);
+    if (record.length() > 0) {
+      batch.add(record.toString());
+    }
+    if (!batch.isEmpty()) {
+      records.put(batch);
+    }
+  }
+
+  /**
+   * Appends chars to the current record, moving every completed record into batch, and handing
+   * full batches to the next stage.
+   *
+   * @return Batch that further records should be added to.
+   */
+  private List<String> split(CharBuffer chars, StringBuilder record, List<String> batch)
+      throws InterruptedException {
+    char last = delimiter.charAt(delimiter.length() - 1);
+    while (chars.hasRemaining()) {
+      char c = chars.get();
+      record.append(c);
+      if (c != last || !endsWithDelimiter(record)) {
+        continue;
+      }
+      record.setLength(record.length() - delimiter.length());
+      stripReturn(record);
+      if (record.length() > 0) {
+        batch.add(record.toString());
+      }
+      record.setLength(0);
+      if (batch.size() == BATCH_SIZE) {
+        records.put(batch);
+        batch = new ArrayList<>(BATCH_SIZE);
+      }
+    }
+    return batch;
+  }
+
+  private boolean endsWithDelimiter(StringBuilder record) {
+    int offset = record.length() - delimiter.length();
+    if (offset < 0) {
+      return false;
+    }
+    for (int i = 0; i < delimiter.length(); i++) {
+      if (record.charAt(offset + i) != delimiter.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Drops the carriage return ending a record of a CRLF file split on "\n", so that blank lines
+   * are skipped like they are in LF files.
+   */
+  private void stripReturn(StringBuilder record) {
+    int length = record.length();
+    if (delimiter.equals("\n") && length > 0 && record.charAt(length - 1) == '\r') {
+      record.setLength(length - 1);
+    }
+  }
+
+  private void separate() throws InterruptedException {
+    for (List<String> batch = records.take(); batch != DONE; batch = records.take()) {
+      List<List<V>> separated = new ArrayList<>(batch.size());
+      for (String record : batch) {
+        separated.add(chain.composer.separate(parser.apply(record)));
+      }
+      links.put(separated);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> List<T> done() {
+    return (List<T>) DONE;
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Collection utility classes
+ * Copyright (C) 2016 Dane Zeke Liergaard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dzlier.markov;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.function.Consumer;
+
+/**
+ * {@link StreamingComposer} that splits strings on every occurrence of a delimiter and joins them
+ * back with it, the same way Guava's {@code Splitter.on} and {@code Joiner.on} do. Each thread
+ * joins into its own reused {@link StringBuilder}, which is cleared whenever an appender is handed
+ * out, so an item left unfinished by a failed generation does not leak into the next one.
+ */
+final class DelimitedComposer implements StreamingComposer<String, String> {
+
+  private final String delimiter;
+  private final ThreadLocal<Joining> appenders = ThreadLocal.withInitial(Joining::new);
+
+  DelimitedComposer(String delimiter) {
+    checkArgument(!delimiter.isEmpty(), "The delimiter may not be the empty string.");
+    this.delimiter = delimiter;
+  }
+
+  @Override
+  public void separate(String item, Consumer<? super String> sink) {
+    int start = 0;
+    for (int end = item.indexOf(delimiter); end >= 0; end = item.indexOf(delimiter, start)) {
+      sink.accept(item.substring(start, end));
+      start = end + delimiter.length();
+    }
+    sink.accept(item.substring(start));
+  }
+
+  @Override
+  public Appender<String, String> appender() {
+    Joining joining = appenders.get();
+    joining.reset();
+    return joining;
+  }
+
+  private class Joining implements Appender<String, String> {
+
+    private final StringBuilder builder = new StringBuilder();
+    private boolean empty = true;
+
+    @Override
+    public void append(String link) {
+      if (!empty) {
+        builder.append(delimiter);
+      }
+      builder.append(link);
+      empty = false;
+    }
+
+    @Override
+    public String finish() {
+      String joined = builder.toString();
+      reset();
+      return joined;
+    }
+
+    void reset() {
+      builder.setLength(0);
+      empty = true;
+    }
+  }
+}
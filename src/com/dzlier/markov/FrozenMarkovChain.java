@@ -0,0 +1,432 @@
+/*
+ * Collection utility classes
+ * Copyright (C) 2016 Dane Zeke Liergaard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dzlier.markov;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.dzlier.markov.MarkovChain.Composer;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Immutable, array-backed snapshot of a {@link MarkovChain}, created by {@code
+ * MarkovChain.freeze()}. Both tries of the chain are compiled into flat arrays: every node owns a
+ * contiguous range of edges, ordered by token id, holding the token, the target node and the
+ * cumulative weight of the range so far. Every node also keeps the number of links in its context
+ * and its suffix link, so that generation backs off from contexts left without transitions by
+ * pruning or eviction as the chain does. Weighted picks are binary searches over those arrays, so
+ * generation does no allocation beyond the generated item.
+ *
+ * Frozen chains can be written to a file with {@code write(Path, TokenCodec)}, and loaded back with
+ * {@code map(Path, Composer, TokenCodec)}, which generates straight from the memory-mapped file.
+ * Chains frozen from interned chains are written with the tokens of their {@link Vocabulary}, and
+ * load back as chains of those tokens.
+ *
+ * Since it cannot be modified, a {@link FrozenMarkovChain} can be shared between threads.
+ */
+public class FrozenMarkovChain<K, V> {
+
+  /** First bytes of every file written by {@code write}, "MKVC". */
+  private static final int MAGIC = 0x4D4B5643;
+  private static final int VERSION = 2;
+
+  private static final int ROOT = 0;
+  private static final int MID = 1;
+  /** Token and target of edges that end a chain. */
+  private static final int END = -1;
+
+  private final Composer<K, V> composer;
+  private final int maxDepth;
+
+  private final Object[] tokens;
+  private final IntBuffer offsets;
+  private final IntBuffer edgeTokens;
+  private final IntBuffer edgeTargets;
+  private final DoubleBuffer cumulativeWeights;
+  /** Suffix link of every node, or END for the roots of both tries. */
+  private final IntBuffer suffixes;
+  /** Number of links in the context of every node. */
+  private final IntBuffer depths;
+
+  private FrozenMarkovChain(Composer<K, V> composer, int maxDepth, Object[] tokens,
+                            IntBuffer offsets, IntBuffer edgeTokens, IntBuffer edgeTargets,
+                            DoubleBuffer cumulativeWeights, IntBuffer suffixes,
+                            IntBuffer depths) {
+    this.composer = composer;
+    this.maxDepth = maxDepth;
+    this.tokens = tokens;
+    this.offsets = offsets;
+    this.edgeTokens = edgeTokens;
+    this.edgeTargets = edgeTargets;
+    this.cumulativeWeights = cumulativeWeights;
+    this.suffixes = suffixes;
+    this.depths = depths;
+  }
+
+  static <K, V> FrozenMarkovChain<K, V> compile(Composer<K, V> composer, int maxDepth,
+                                                MarkovChain<K, V>.Node root,
+                                                MarkovChain<K, V>.Node mid) {
+    Map<V, Integer> tokenIds = new HashMap<>();
+    List<V> tokenList = new ArrayList<>();
+    List<MarkovChain<K, V>.Node> nodes = new ArrayList<>();
+    nodes.add(root);
+    nodes.add(mid);
+    // Every node other than the two roots is the target of exactly one edge, as is every end node.
+    int edges = 0;
+    for (int i = 0; i < nodes.size(); i++) {
+      for (MarkovChain<K, V>.Node child : nodes.get(i).children) {
+        edges++;
+        if (!child.isEnd) {
+          nodes.add(child);
+          if (!tokenIds.containsKey(child.item)) {
+            tokenIds.put(child.item, tokenList.size());
+            tokenList.add(child.item);
+          }
+        }
+      }
+    }
+
+    Map<MarkovChain<K, V>.Node, Integer> ids = new IdentityHashMap<>();
+    for (int i = 0; i < nodes.size(); i++) {
+      ids.put(nodes.get(i), i);
+    }
+    int[] suffixes = new int[nodes.size()];
+    int[] depths = new int[nodes.size()];
+    for (int i = 0; i < nodes.size(); i++) {
+      MarkovChain<K, V>.Node suffix = nodes.get(i).suffix;
+      suffixes[i] = suffix == null ? END : ids.get(suffix);
+      depths[i] = nodes.get(i).depth;
+    }
+
+    int[] offsets = new int[nodes.size() + 1];
+    int[] edgeTokens = new int[edges];
+    int[] edgeTargets = new int[edges];
+    double[] cumulativeWeights = new double[edges];
+
+    // Targets are assigned in the same breadth-first order the nodes were collected in.
+    int nextTarget = 2;
+    int edge = 0;
+    for (int i = 0; i < nodes.size(); i++) {
+      MarkovChain<K, V>.Node node = nodes.get(i);
+      offsets[i] = edge;
+      List<MarkovChain<K, V>.Node> children = new ArrayList<>(node.children);
+      int[] childTokens = new int[children.size()];
+      int[] childTargets = new int[children.size()];
+      for (int c = 0; c < children.size(); c++) {
+        MarkovChain<K, V>.Node child = children.get(c);
+        childTokens[c] = child.isEnd ? END : tokenIds.get(child.item);
+        childTargets[c] = child.isEnd ? END : nextTarget++;
+      }
+      Integer[] order = new Integer[children.size()];
+      for (int c = 0; c < order.length; c++) {
+        order[c] = c;
+      }
+      Arrays.sort(order, (a, b) -> Integer.compare(childTokens[a], childTokens[b]));
+      double cumulative = 0.0;
+      for (int c : order) {
+        cumulative += node.children.getKeyWeight(children.get(c).item);
+        edgeTokens[edge] = childTokens[c];
+        edgeTargets[edge] = childTargets[c];
+        cumulativeWeights[edge] = cumulative;
+        edge++;
+      }
+    }
+    offsets[nodes.size()] = edge;
+    return new FrozenMarkovChain<>(composer, maxDepth, tokenList.toArray(), IntBuffer.wrap(offsets),
+                                   IntBuffer.wrap(edgeTokens), IntBuffer.wrap(edgeTargets),
+                                   DoubleBuffer.wrap(cumulativeWeights), IntBuffer.wrap(suffixes),
+                                   IntBuffer.wrap(depths));
+  }
+
+  /**
+   * Memory-maps a chain written by {@code write(Path, TokenCodec)}. Only the tokens are read onto
+   * the heap; generation reads all other data straight from the mapped file, so the chain is
+   * available almost immediately, and processes mapping the same file share its pages.
+   *
+   * @param path File to map.
+   * @param composer Composer that can join the chain's V's back into K's.
+   * @param codec Codec the chain's V's were written with.
+   * @return New {@link FrozenMarkovChain} backed by the mapped file.
+   * @throws IOException If the file cannot be read or is not a chain of a supported version.
+   */
+  public static <K, V> FrozenMarkovChain<K, V> map(Path path, Composer<K, V> composer,
+                                                   TokenCodec<V> codec) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer header = channel.map(MapMode.READ_ONLY, 0, 6 * Integer.BYTES);
+      if (header.getInt() != MAGIC) {
+        throw new IOException(path + " is not a Markov chain file");
+      }
+      int version = header.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported Markov chain file version " + version);
+      }
+      int maxDepth = header.getInt();
+      int nodeCount = header.getInt();
+      int edgeCount = header.getInt();
+      int tokenBytes = header.getInt();
+      long position = header.capacity();
+
+      ByteBuffer tokenBuffer = channel.map(MapMode.READ_ONLY, position, tokenBytes);
+      byte[] encoded = new byte[tokenBytes];
+      tokenBuffer.get(encoded);
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+      Object[] tokens = new Object[in.readInt()];
+      for (int i = 0; i < tokens.length; i++) {
+        tokens[i] = codec.read(in);
+      }
+      position += tokenBytes;
+
+      // Sections are mapped separately, so only a single section is limited to 2GB.
+      IntBuffer offsets = channel.map(MapMode.READ_ONLY, position,
+                                      (nodeCount + 1L) * Integer.BYTES).asIntBuffer();
+      position += (nodeCount + 1L) * Integer.BYTES;
+      IntBuffer edgeTokens = channel.map(MapMode.READ_ONLY, position,
+                                         (long) edgeCount * Integer.BYTES).asIntBuffer();
+      position += (long) edgeCount * Integer.BYTES;
+      IntBuffer edgeTargets = channel.map(MapMode.READ_ONLY, position,
+                                          (long) edgeCount * Integer.BYTES).asIntBuffer();
+      position += (long) edgeCount * Integer.BYTES;
+      DoubleBuffer cumulativeWeights = channel.map(MapMode.READ_ONLY, position,
+                                                   (long) edgeCount * Double.BYTES)
+                                              .asDoubleBuffer();
+      position += (long) edgeCount * Double.BYTES;
+      IntBuffer suffixes = channel.map(MapMode.READ_ONLY, position,
+                                       (long) nodeCount * Integer.BYTES).asIntBuffer();
+      position += (long) nodeCount * Integer.BYTES;
+      IntBuffer depths = channel.map(MapMode.READ_ONLY, position,
+                                     (long) nodeCount * Integer.BYTES).asIntBuffer();
+      return new FrozenMarkovChain<>(composer, maxDepth, tokens, offsets, edgeTokens, edgeTargets,
+                                     cumulativeWeights, suffixes, depths);
+    }
+  }
+
+  /**
+   * Writes this chain to a file in a versioned binary format that can be loaded with {@code
+   * map(Path, Composer, TokenCodec)}. Chains frozen from interned chains are written with {@code
+   * write(Path, Vocabulary, TokenCodec)} instead, as their ids mean nothing without the {@link
+   * Vocabulary} of their composer.
+   *
+   * @param path File to write, replacing it if it exists.
+   * @param codec Codec to write the chain's V's with.
+   * @throws IOException If the file cannot be written.
+   * @throws IllegalStateException If the chain is interned.
+   */
+  @SuppressWarnings("unchecked")
+  public void write(Path path, TokenCodec<V> codec) throws IOException {
+    checkState(!composer.isInterned(), "Interned chains are written with their vocabulary");
+    List<V> tokenList = new ArrayList<>(tokens.length);
+    for (Object token : tokens) {
+      tokenList.add((V) token);
+    }
+    write(path, tokenList, codec);
+  }
+
+  /**
+   * Writes this chain, frozen from an interned chain, to a file with the tokens of vocabulary in
+   * place of their ids. The file is in the same format as files written by {@code write(Path,
+   * TokenCodec)}, and is loaded with {@code map(Path, Composer, TokenCodec)} and the composer the
+   * chain's composer was interned from.
+   *
+   * @param path File to write, replacing it if it exists.
+   * @param vocabulary {@link Vocabulary} the chain's composer interns into.
+   * @param codec Codec to write the tokens of vocabulary with.
+   * @throws IOException If the file cannot be written.
+   * @throws IllegalArgumentException If the chain is not interned into vocabulary.
+   */
+  public <T> void write(Path path, Vocabulary<T> vocabulary, TokenCodec<T> codec)
+      throws IOException {
+    checkArgument(composer.isInternedInto(vocabulary), "Chain is not interned into vocabulary");
+    List<T> tokenList = new ArrayList<>(tokens.length);
+    for (Object id : tokens) {
+      tokenList.add(vocabulary.token((Integer) id));
+    }
+    write(path, tokenList, codec);
+  }
+
+  private <T> void write(Path path, List<T> tokenList, TokenCodec<T> codec) throws IOException {
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+    DataOutputStream tokenOut = new DataOutputStream(encoded);
+    tokenOut.writeInt(tokenList.size());
+    for (T token : tokenList) {
+      codec.write(token, tokenOut);
+    }
+    tokenOut.flush();
+
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(path)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(maxDepth);
+      out.writeInt(nodeCount());
+      out.writeInt(edgeTokens.limit());
+      out.writeInt(encoded.size());
+      encoded.writeTo(out);
+      for (int i = 0; i < offsets.limit(); i++) {
+        out.writeInt(offsets.get(i));
+      }
+      for (int i = 0; i < edgeTokens.limit(); i++) {
+        out.writeInt(edgeTokens.get(i));
+      }
+      for (int i = 0; i < edgeTargets.limit(); i++) {
+        out.writeInt(edgeTargets.get(i));
+      }
+      for (int i = 0; i < cumulativeWeights.limit(); i++) {
+        out.writeDouble(cumulativeWeights.get(i));
+      }
+      for (int i = 0; i < suffixes.limit(); i++) {
+        out.writeInt(suffixes.get(i));
+      }
+      for (int i = 0; i < depths.limit(); i++) {
+        out.writeInt(depths.get(i));
+      }
+    }
+  }
+
+  /**
+   * Generate K of probabilistically sequenced components V, with the seed depth provided. Picks
+   * from the same distribution as {@code MarkovChain.generate(int)} on the chain this was frozen
+   * from, including backing off from contexts that pruning or eviction left without transitions.
+   *
+   * @param depth Desired seed depth, up to max depth of tree.
+   * @return New K probabilistically resembling sample base, based on seed depth.
+   */
+  public K generate(int depth) {
+    depth = Math.max(1, Math.min(depth, maxDepth));
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int[] seed = new int[16];
+    int size = 0;
+    int context = ROOT;
+    int edge = pick(ROOT, random);
+    while (size < depth) {
+      // A context left without transitions is backed off from below.
+      if (edge == END && context != ROOT) {
+        break;
+      }
+      if (edge == END || edgeTokens.get(edge) == END) {
+        return join(seed, size);
+      }
+      seed = append(seed, size++, edgeTokens.get(edge));
+      context = edgeTargets.get(edge);
+      edge = pick(context, random);
+    }
+    // End edge indicates natural end of chain.
+    if (edge != END && edgeTokens.get(edge) == END) {
+      return join(seed, size);
+    }
+    edge = pickBackingOff(suffixes.get(context), random);
+    while (edge != END && edgeTokens.get(edge) != END) {
+      seed = append(seed, size++, edgeTokens.get(edge));
+      int node = edgeTargets.get(edge);
+      // A node shorter than depth links was reached by backing off, and is itself the context of
+      // the last links picked.
+      edge = pickBackingOff(depths.get(node) < depth ? node : suffixes.get(node), random);
+    }
+    return join(seed, size);
+  }
+
+  /**
+   * Generate a K comprised of probabilistically sequenced components V, with maximum seed depth.
+   *
+   * @return Item K probabilistically resembling sample base based on seed depth.
+   */
+  public K generate() {
+    return generate(Integer.MAX_VALUE);
+  }
+
+  /**
+   * @return Number of nodes in both compiled tries, including their roots.
+   */
+  public int nodeCount() {
+    return offsets.limit() - 1;
+  }
+
+  /**
+   * Picks a random edge of the mid context node, or of the longest shorter context if node has no
+   * edges left.
+   *
+   * @return Index of the edge picked, or END if no context down to the mid root has edges.
+   */
+  private int pickBackingOff(int node, ThreadLocalRandom random) {
+    int edge = pick(node, random);
+    while (edge == END && node != MID) {
+      node = suffixes.get(node);
+      edge = pick(node, random);
+    }
+    return edge;
+  }
+
+  /**
+   * Picks a random edge of node, based on edge weights.
+   *
+   * @return Index of the edge picked, or END if node is END or has no edges.
+   */
+  private int pick(int node, ThreadLocalRandom random) {
+    if (node == END || offsets.get(node) == offsets.get(node + 1)) {
+      return END;
+    }
+    int from = offsets.get(node);
+    int to = offsets.get(node + 1) - 1;
+    double value = random.nextDouble() * cumulativeWeights.get(to);
+    while (from < to) {
+      int middle = (from + to) >>> 1;
+      if (cumulativeWeights.get(middle) > value) {
+        to = middle;
+      } else {
+        from = middle + 1;
+      }
+    }
+    return from;
+  }
+
+  private static int[] append(int[] seed, int size, int token) {
+    if (size == seed.length) {
+      seed = Arrays.copyOf(seed, size * 2);
+    }
+    seed[size] = token;
+    return seed;
+  }
+
+  @SuppressWarnings("unchecked")
+  private K join(int[] seed, int size) {
+    List<V> chain = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      chain.add((V) tokens[seed[i]]);
+    }
+    return composer.join(chain);
+  }
+}
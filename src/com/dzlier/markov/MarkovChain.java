@@ -17,15 +17,53 @@
  */
 package com.dzlier.markov;
 
-import com.dzlier.weight.CombiningWeightedList;
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.dzlier.markov.StreamingComposer.Appender;
+import com.dzlier.weight.CompactWeightedList;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Joiner;
-import com.google.common.base.Splitter;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
-import java.util.LinkedList;
+import com.google.common.collect.Sets;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.DoubleSupplier;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Java implementation of a Markov chain of generic type. When creating a Markov chain, you must
@@ -35,11 +73,53 @@ import java.util.function.Function;
  */
 public class MarkovChain<K, V> {
 
-  private final Node mid;
-  private final Node root;
+  /** Number of items scored one after another by each parallel task. */
+  private static final int SCORE_BATCH = 1024;
+  /**
+   * Estimated heap bytes taken per node: the node, its list of transitions with the arrays it grows
+   * into, and its entries and end node in the lists of other nodes, with compressed references.
+   */
+  private static final int NODE_BYTES = 192;
+  /**
+   * Longest maxLength length-bounded generation accepts. Its probabilities take an entry per node
+   * for every length up to maxLength.
+   */
+  private static final int MAX_BOUNDED_LENGTH = 1 << 16;
+
+  @VisibleForTesting final Node mid;
+  @VisibleForTesting final Node root;
   @VisibleForTesting final Composer<K, V> composer;
 
   private final int maxDepth;
+  private int nodeCount;
+  private int budget = Integer.MAX_VALUE;
+  /**
+   * Node count past which contexts are evicted. It is the budget, unless the contexts that cannot
+   * be evicted already take more than the budget, in which case eviction waits for the chain to
+   * grow a tenth past what the last eviction left.
+   */
+  private int evictAbove = Integer.MAX_VALUE;
+  private Eviction eviction = Eviction.LEAST_WEIGHT;
+  private long touches;
+  /** Number of links in the longest item processed, which bounds the items generateTopK finds. */
+  private int longest;
+  private double unseenLogProbability = Double.NEGATIVE_INFINITY;
+  private final Map<Integer, Termination> terminations = new ConcurrentHashMap<>();
+  /** Nodes changed since the termination probabilities were last brought up to date. */
+  private final Set<Node> changed = Sets.newIdentityHashSet();
+  private final List<V> links = new ArrayList<>();
+  private final Consumer<V> sink = links::add;
+  private final Function<V, Node> newNode = Node::new;
+  private Node[] cursors = nodes(0);
+  /**
+   * Epoch of the state being processed. Every snapshot taken so far has an older epoch, and sees
+   * the chain as it was before any node was changed in a newer one.
+   */
+  private long epoch;
+  /** Snapshots that may still be read, by epoch. */
+  private final NavigableMap<Long, Reference<Snapshot>> snapshots = new TreeMap<>();
+  private final ReferenceQueue<Snapshot> released = new ReferenceQueue<>();
+  private volatile Snapshot published;
 
   /**
    * Create a {@link MarkovChain} that accepts and generates objects of type K by breaking them down
@@ -69,6 +149,18 @@ public class MarkovChain<K, V> {
     this.maxDepth = Integer.MAX_VALUE;
   }
 
+  /**
+   * Create a {@link MarkovChain} that separates and joins its items through the provided {@link
+   * StreamingComposer}, so that neither processing nor generation builds intermediate lists of
+   * V's. Max depth option limits the size of the trees the chain creates.
+   *
+   * @param composer Composer that can break down K's into V's, and vice versa.
+   * @param maxDepth Maximum depth of chain.
+   */
+  public MarkovChain(StreamingComposer<K, V> composer, int maxDepth) {
+    this(new Composer<>(composer), maxDepth);
+  }
+
   /**
    * Create a maximum maxDepth {@link MarkovChain} that accepts and generates objects of type K by
    * breaking them down into type V via the provided separator and joiner functions.
@@ -102,9 +194,7 @@ public class MarkovChain<K, V> {
    * @return New {@link MarkovChain}.
    */
   public static MarkovChain<String, String> stringChain(String delimiter, int maxDepth) {
-    Splitter splitter = Splitter.on(delimiter);
-    Joiner joiner = Joiner.on(delimiter);
-    return new MarkovChain<>(new Composer<>(splitter::splitToList, joiner::join), maxDepth);
+    return new MarkovChain<>(new Composer<>(new DelimitedComposer(delimiter)), maxDepth);
   }
 
   /**
@@ -118,6 +208,82 @@ public class MarkovChain<K, V> {
     return stringChain(delimiter, Integer.MAX_VALUE);
   }
 
+  /**
+   * Creates a {@link MarkovChain} that interns the V's produced by composer into int ids before
+   * adding them to the chain, and only maps ids back to V's when joining generated items. Chains
+   * built this way store and compare small ids instead of full V references.
+   *
+   * @param composer Composer that can break down K's into V's, and vice versa.
+   * @param maxDepth Maximum depth of chain.
+   * @return New {@link MarkovChain}.
+   */
+  public static <K, V> MarkovChain<K, Integer> internedChain(Composer<K, V> composer,
+                                                            int maxDepth) {
+    return internedChain(composer, new Vocabulary<>(), maxDepth);
+  }
+
+  /**
+   * Creates a {@link MarkovChain} that interns the V's produced by composer into the ids of
+   * vocabulary, which the chain needs to be saved with {@code save(Path, Vocabulary,
+   * TokenCodec)}.
+   *
+   * @param composer Composer that can break down K's into V's, and vice versa.
+   * @param vocabulary {@link Vocabulary} to intern V's into.
+   * @param maxDepth Maximum depth of chain.
+   * @return New {@link MarkovChain}.
+   */
+  public static <K, V> MarkovChain<K, Integer> internedChain(Composer<K, V> composer,
+                                                            Vocabulary<V> vocabulary,
+                                                            int maxDepth) {
+    return new MarkovChain<>(composer.interned(vocabulary), maxDepth);
+  }
+
+  /**
+   * Creates a {@link MarkovChain} that interns the V's produced by composer into int ids before
+   * adding them to the chain.
+   *
+   * @param composer Composer that can break down K's into V's, and vice versa.
+   * @return New {@link MarkovChain}.
+   */
+  public static <K, V> MarkovChain<K, Integer> internedChain(Composer<K, V> composer) {
+    return internedChain(composer, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Bounds the number of nodes this chain holds. Whenever processing or merging takes the chain
+   * over budget, the least valuable contexts of both tries are evicted until the chain is a tenth
+   * under budget, so that eviction is not repeated on every item processed. Contexts of a single
+   * link are never evicted, so a chain over a large vocabulary may stay over budget. Such a chain
+   * is only evicted from again once it has grown a tenth past the nodes the last eviction left.
+   * Generation backs off to the longest remaining suffix of an evicted context.
+   *
+   * @param budget Maximum number of nodes to hold, including the roots of both tries.
+   * @param eviction Policy deciding which contexts are least valuable.
+   */
+  public void setBudget(int budget, Eviction eviction) {
+    checkArgument(budget > 0, "Budget must be positive");
+    this.budget = budget;
+    this.eviction = eviction;
+    this.evictAbove = budget;
+    if (nodeCount > evictAbove) {
+      evict();
+    }
+  }
+
+  /**
+   * Bounds the heap memory this chain takes, as {@code setBudget(int, Eviction)} bounds its nodes.
+   * Memory is estimated at 192 bytes per node, which is what nodes of chains of words take on a
+   * 64-bit JVM with compressed references. Chains of larger links, such as long strings, take more
+   * memory than the budget for links they hold.
+   *
+   * @param bytes Maximum number of bytes of heap memory to take.
+   * @param eviction Policy deciding which contexts are least valuable.
+   */
+  public void setMemoryBudget(long bytes, Eviction eviction) {
+    checkArgument(bytes >= NODE_BYTES, "Budget must hold at least one node");
+    setBudget((int) Math.min(Integer.MAX_VALUE, bytes / NODE_BYTES), eviction);
+  }
+
   /**
    * Splits the provided item K into series of 0 or more V's, and adds them to the markov chain.
    *
@@ -132,154 +298,1813 @@ public class MarkovChain<K, V> {
    * @param item Item to be processed.
    * @param weight Forced added weight of object in chain.
    */
-  public void process(K item, Double weight) {
-    List<V> chain = Lists.newLinkedList(this.composer.separate(item));
-    if (chain.size() <= maxDepth) {
-      root.add(chain, weight).isEnd(weight);
-    } else {
-      root.add(chain.subList(0, maxDepth), weight);
-    }
-    while (chain.size() > 0) {
-      chain.remove(0);
-      Node node = mid.add(chain.subList(0, Math.min(chain.size(), maxDepth)), weight);
-      if (chain.size() < maxDepth) {
-        node.isEnd(weight);
-      }
+  public void process(K item, double weight) {
+    try {
+      composer.separate(item, sink);
+      processLinks(links, weight);
+    } finally {
+      links.clear();
     }
   }
 
   /**
-   * Generate K of probabilistically sequenced components V, with the seed maxDepth provided. Seed
-   * maxDepth determines how many links back the chain looks when choosing a next segment.
+   * Adds a chain of V's that has already been separated from an item to the markov chain.
    *
-   * @param depth Desired seed depth, up to max depth of tree.
-   * @return New K probabilistically resembling sample base, based on seed depth.
+   * @param links V's separated from an item.
+   * @param weight Added weight of the item in chain.
    */
-  public K generate(int depth) {
-    depth = Math.min(depth, maxDepth);
-    List<V> seed = new LinkedList<>();
-    Node node = root.pick();
-    while (seed.size() < depth) {
-      if (node.item == null) {
-        break;
+  void processLinks(List<V> links, double weight) {
+    List<V> chain = links instanceof RandomAccess ? links : new ArrayList<>(links);
+    int size = chain.size();
+    longest = Math.max(longest, size);
+    if (size == 0) {
+      root.isEnd(weight);
+      return;
+    }
+    // Every start position has a cursor into the trie, which extends its context by one link per
+    // step until it holds maxDepth links. Only the last maxDepth cursors can still be extended, so
+    // they are kept in a ring indexed by start position.
+    int width = Math.min(maxDepth, size);
+    if (cursors.length < width) {
+      cursors = nodes(Math.max(width, cursors.length * 2));
+    }
+    for (int position = 0; position < size; position++) {
+      V link = chain.get(position);
+      cursors[position % width] = position == 0 ? root : mid;
+      int oldest = Math.max(0, position - maxDepth + 1);
+      // Newer cursors are extended first, since they hold the suffixes of older ones.
+      for (int start = position; start >= oldest; start--) {
+        int slot = start % width;
+        Node node = cursors[slot].edit().add(weight, link, newNode);
+        // Links are set again on existing nodes, since pruning may have left them backed off to a
+        // shorter context than the one the newer cursor has just recreated.
+        node.link(start == position ? mid : cursors[(start + 1) % width]);
+        node.depth = position - start + 1;
+        node.touched = touches;
+        cursors[slot] = node;
       }
-      seed.add(node.item);
-      node = node.pick();
     }
-    // Null-value node indicates natural end of chain.
-    if (node != null && node.item == null) {
-      return composer.join(seed);
+    if (size <= maxDepth) {
+      cursors[0].isEnd(weight);
     }
-    node = mid.get(seed.subList(1, seed.size())).pick();
-    while (node != null && !node.isEnd) {
-      Optional.ofNullable(node.item).ifPresent(seed::add);
-      node = mid.get(seed.subList(seed.size() - depth + 1, seed.size())).pick();
+    for (int start = Math.max(1, size - maxDepth + 1); start < size; start++) {
+      cursors[start % width].isEnd(weight);
+    }
+    mid.isEnd(weight);
+    Arrays.fill(cursors, 0, width, null);
+    touches++;
+    if (nodeCount > evictAbove) {
+      evict();
     }
-    return composer.join(seed);
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private Node[] nodes(int size) {
+    return (Node[]) new MarkovChain.Node[size];
   }
 
   /**
-   * Generate a K comprised of probabilistically sequenced components V, with maximum seed maxDepth.
-   * Seed maxDepth determines how many links back the chain looks when choosing a next segment.
+   * Processes every item in the stream, as {@code process(K)} would. If the stream is parallel,
+   * each fork/join task builds its own partial chain, and the partial chains are merged into this
+   * one once the stream is exhausted. The resulting weights are the same as processing the items one
+   * at a time, but the chain must not be used by other threads until this returns.
    *
-   * @return Item K probabilistically resembling sample base based on seed maxDepth.
+   * @param items Items to be processed.
    */
-  public K generate() {
-    return generate(Integer.MAX_VALUE);
+  public void processAll(Stream<K> items) {
+    if (!items.isParallel()) {
+      items.forEach(this::process);
+      return;
+    }
+    MarkovChain<K, V> partial = items.collect(() -> new MarkovChain<>(composer, maxDepth),
+                                              MarkovChain::process,
+                                              MarkovChain::merge);
+    merge(partial);
   }
 
-  @VisibleForTesting
-  Node get(K item) {
-    return root.get(this.composer.separate(item));
+  /**
+   * Processes every item in items in parallel, on a dedicated fork/join pool of the given
+   * parallelism. See {@code processAll(Stream)}.
+   *
+   * @param items Items to be processed.
+   * @param parallelism Number of threads to process items on.
+   */
+  public void processAll(Iterable<K> items, int parallelism) {
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      pool.submit(() -> processAll(StreamSupport.stream(items.spliterator(), true))).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw Throwables.propagate(e);
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    } finally {
+      pool.shutdown();
+    }
   }
 
-  @VisibleForTesting
-  Node getMid(K item) {
-    return mid.get(this.composer.separate(item));
+  /**
+   * Reads newline-separated UTF-8 records from the file and processes each of them, as {@code
+   * ingest(ReadableByteChannel, Function, String)} does. Gzipped files are decompressed on the fly.
+   *
+   * @param path File to read records from.
+   * @param parser Function that parses a single record into an item K.
+   * @throws IOException If the file cannot be read.
+   */
+  public void ingest(Path path, Function<String, K> parser) throws IOException {
+    ingest(path, parser, "\n");
   }
 
-  @VisibleForTesting
-  class Node {
+  /**
+   * Reads UTF-8 records separated by delimiter from the file and processes each of them, as {@code
+   * ingest(ReadableByteChannel, Function, String)} does. Gzipped files are decompressed on the fly.
+   *
+   * @param path File to read records from.
+   * @param parser Function that parses a single record into an item K.
+   * @param delimiter Non-empty delimiter between records.
+   * @throws IOException If the file cannot be read.
+   */
+  public void ingest(Path path, Function<String, K> parser, String delimiter)
+      throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ingest(channel, parser, delimiter);
+    }
+  }
 
-    @VisibleForTesting final V item;
-    @VisibleForTesting CombiningWeightedList<Node> children;
-    final boolean isEnd;
+  /**
+   * Reads UTF-8 records separated by delimiter from the channel and processes each of them as
+   * {@code process(K)} would, skipping empty records. Records are read in large buffers and parsed
+   * and separated into V's on background threads, while the calling thread adds them to the chain,
+   * so reading never holds more than a bounded number of records in memory. Gzipped input is
+   * decompressed on the fly. When the delimiter is a newline, a trailing carriage return is
+   * stripped from each record.
+   *
+   * @param channel Channel to read records from. It is read to the end but not closed.
+   * @param parser Function that parses a single record into an item K.
+   * @param delimiter Non-empty delimiter between records.
+   * @throws IOException If the channel cannot be read.
+   */
+  public void ingest(ReadableByteChannel channel, Function<String, K> parser, String delimiter)
+      throws IOException {
+    new CorpusPipeline<>(this, parser, delimiter).run(channel);
+  }
 
-    Node(V item) {
-      children = new CombiningWeightedList<>(Node::matches);
-      this.item = item;
-      this.isEnd = false;
+  /**
+   * Adds all weights of other to this chain, node by node, as if every item processed by other had
+   * also been processed by this chain. Runs in time proportional to the size of other, which is
+   * left unchanged. Interned chains can only be merged if they share the same composer, as the
+   * same id means different V's in different vocabularies.
+   *
+   * @param other Chain of the same max depth to merge into this one.
+   */
+  public void merge(MarkovChain<K, V> other) {
+    checkArgument(other != this, "Cannot merge a chain into itself");
+    checkArgument(other.maxDepth == maxDepth, "Cannot merge chains of different max depths");
+    checkArgument(other.composer == composer
+                  || !composer.isInterned() && !other.composer.isInterned(),
+                  "Cannot merge interned chains of different vocabularies");
+    List<Node> parents = new ArrayList<>();
+    List<Node> created = new ArrayList<>();
+    root.merge(other.root, parents, created);
+    mid.merge(other.mid, parents, created);
+    // Parents are always created before their children, so their suffixes are already linked.
+    for (int i = 0; i < created.size(); i++) {
+      created.get(i).link(suffixOf(parents.get(i), created.get(i).item));
+      created.get(i).depth = parents.get(i).depth + 1;
     }
+    longest = Math.max(longest, other.longest);
+    touches++;
+    modified();
+    if (nodeCount > evictAbove) {
+      evict();
+    }
+  }
 
-    private Node() {
-      this.item = null;
-      this.isEnd = true;
+  /**
+   * Removes every transition lighter than minWeight, end transitions included, together with all
+   * contexts below it. The remaining transitions of each context keep their weights, so they are
+   * picked in proportion to each other. Contexts left without any transitions are backed off from
+   * during generation, continuing from the longest shorter context that has transitions left.
+   * <p>
+   * Every context that keeps any transition also keeps the one that starts its shortest way to an
+   * end, however light it is, so that every item generated from the pruned chain can still end.
+   *
+   * @param minWeight Smallest weight a transition must have to stay in the chain.
+   */
+  public void prune(double minWeight) {
+    prune(children -> children.stream().anyMatch(c -> children.getKeyWeight(c.item) < minWeight),
+          children -> children.removeBelow(minWeight));
+  }
+
+  /**
+   * Keeps only the count heaviest transitions out of each context, removing the rest as {@code
+   * prune(double)} would. A context whose count heaviest transitions do not start its shortest way
+   * to an end keeps the transition that does as well.
+   *
+   * @param count Number of transitions to keep per context.
+   */
+  public void retainTop(int count) {
+    checkArgument(count > 0, "Must retain at least one transition per context");
+    prune(children -> children.size() > count, children -> children.retainTop(count));
+  }
+
+  /**
+   * Releases storage left over from growing and pruning, sizing the transitions of every context to
+   * the ones it still holds. Contexts already sized to their transitions are left as they are, so
+   * snapshots do not need them copied.
+   */
+  public void compact() {
+    Deque<Node> nodes = new ArrayDeque<>();
+    nodes.push(root);
+    nodes.push(mid);
+    while (!nodes.isEmpty()) {
+      Node node = nodes.pop();
+      if (!node.children.isCompact()) {
+        node.edit().compact();
+      }
+      node.children.stream().filter(child -> !child.isEnd).forEach(nodes::push);
     }
+  }
 
-    Node add(List<V> chain, Double weight) {
-      Node node = this;
-      for (V link : chain) {
-        Node newNode = new Node(link);
-        node.children.add(weight, newNode);
-        node = node.children.findFirst(n -> n.matches(newNode)).orElse(null);
+  /**
+   * Removes transitions with remover from every context that affected says has any to remove, but
+   * the first transition of its shortest way to an end unless none are left. Other contexts are
+   * left as they are, so snapshots do not need them copied.
+   */
+  private void prune(Predicate<CompactWeightedList<V, Node>> affected,
+                     Function<CompactWeightedList<V, Node>, List<Node>> remover) {
+    Map<Node, Node> waysToEnd = waysToEnd();
+    Deque<Node> nodes = new ArrayDeque<>();
+    nodes.push(root);
+    nodes.push(mid);
+    while (!nodes.isEmpty()) {
+      Node node = nodes.pop();
+      if (affected.test(node.children)) {
+        Node way = waysToEnd.get(node);
+        double weight = way == null ? 0.0 : node.children.getKeyWeight(way.item);
+        CompactWeightedList<V, Node> children = node.edit();
+        remover.apply(children);
+        // A context left without transitions backs off to its suffix, which is as close to an end.
+        if (way != null && !children.isEmpty() && children.lookup(way.item) == null) {
+          children.add(weight, way.item, item -> way);
+        }
       }
-      return node;
+      node.children.stream().filter(child -> !child.isEnd).forEach(nodes::push);
     }
+    relink();
+  }
 
-    Node isEnd(Double weight) {
-      Node endNode = new Node();
-      children.add(weight, endNode);
-      return children.findFirst(n -> n.matches(null)).orElse(null);
+  /**
+   * Finds the transition out of every context that starts its shortest way to an end, counting the
+   * links generated. A context without transitions, such as one of max depth, continues from its
+   * suffix. Every context is at least as far from an end as its suffix, since the suffix ends and
+   * continues wherever the context does, so following these transitions ends however later
+   * pruning shortens the suffixes they lead to, and at any seed depth.
+   *
+   * @return First transition of the shortest way to an end of every context that has one.
+   */
+  private Map<Node, Node> waysToEnd() {
+    Map<Node, Node> parents = new IdentityHashMap<>();
+    Map<Node, List<Node>> continuing = new IdentityHashMap<>();
+    Map<Node, Integer> steps = new IdentityHashMap<>();
+    Map<Node, Node> ways = new IdentityHashMap<>();
+    Deque<Node> reached = new ArrayDeque<>();
+    Deque<Node> nodes = new ArrayDeque<>();
+    nodes.push(root);
+    nodes.push(mid);
+    while (!nodes.isEmpty()) {
+      Node node = nodes.pop();
+      Node end = node.children.lookup(null);
+      if (end != null) {
+        steps.put(node, 0);
+        ways.put(node, end);
+        reached.add(node);
+      } else if (node.children.isEmpty() && node.suffix != null) {
+        continuing.computeIfAbsent(node.suffix, suffix -> new ArrayList<>()).add(node);
+      }
+      for (Node child : node.children) {
+        if (!child.isEnd) {
+          parents.put(child, node);
+          nodes.push(child);
+        }
+      }
+    }
+    // Breadth-first from the contexts that end, where continuing from a suffix takes no step.
+    while (!reached.isEmpty()) {
+      Node node = reached.poll();
+      int step = steps.get(node);
+      for (Node context : continuing.getOrDefault(node, Collections.emptyList())) {
+        if (steps.getOrDefault(context, Integer.MAX_VALUE) > step) {
+          steps.put(context, step);
+          reached.addFirst(context);
+        }
+      }
+      Node parent = parents.get(node);
+      if (parent == null) {
+        continue;
+      }
+      int parentStep = steps.getOrDefault(parent, Integer.MAX_VALUE);
+      if (parentStep > step + 1) {
+        steps.put(parent, step + 1);
+        ways.put(parent, node);
+        reached.addLast(parent);
+      } else if (parentStep == step + 1 && parent.children.getKeyWeight(node.item)
+                                           > parent.children.getKeyWeight(ways.get(parent).item)) {
+        // Of equally short ways, the most likely one is kept.
+        ways.put(parent, node);
+      }
     }
+    return ways;
+  }
 
-    Node get(V... chain) {
-      return get(Lists.newArrayList(chain));
+  /**
+   * Evicts the contexts of more than one link with the lowest weight or oldest last use, until the
+   * chain is a tenth under budget. Every context is at most as heavy and as recently used as its
+   * parent and its suffix, and ties are broken by evicting longer contexts first, so contexts are
+   * only evicted after all contexts that extend them.
+   */
+  private void evict() {
+    List<Node> parents = new ArrayList<>();
+    List<Node> candidates = new ArrayList<>();
+    Deque<Node> nodes = new ArrayDeque<>();
+    Stream.concat(root.children.stream(), mid.children.stream())
+          .filter(child -> !child.isEnd).forEach(nodes::push);
+    while (!nodes.isEmpty()) {
+      Node parent = nodes.pop();
+      for (Node child : parent.children) {
+        if (!child.isEnd) {
+          parents.add(parent);
+          candidates.add(child);
+          nodes.push(child);
+        }
+      }
+    }
+    double[] values = new double[candidates.size()];
+    for (int i = 0; i < values.length; i++) {
+      Node candidate = candidates.get(i);
+      values[i] = eviction == Eviction.LEAST_RECENT
+                  ? candidate.touched : parents.get(i).children.getKeyWeight(candidate.item);
+    }
+    int excess = Math.min(nodeCount - (budget - budget / 10), values.length);
+    if (excess > 0) {
+      // Evicts every candidate below the value of the last one evicted, and of the candidates of
+      // that value, the longest contexts.
+      double[] sorted = values.clone();
+      Arrays.sort(sorted);
+      double last = sorted[excess - 1];
+      int below = 0;
+      while (sorted[below] < last) {
+        below++;
+      }
+      int[] tied = IntStream.range(0, values.length).filter(i -> values[i] == last)
+                            .map(i -> candidates.get(i).depth).toArray();
+      Arrays.sort(tied);
+      int shortest = tied[tied.length - (excess - below)];
+      int atShortest = excess - below;
+      for (int depth : tied) {
+        atShortest -= depth > shortest ? 1 : 0;
+      }
+      Map<Node, Set<Node>> evicted = new IdentityHashMap<>();
+      for (int i = 0; i < values.length; i++) {
+        int depth = candidates.get(i).depth;
+        if (values[i] < last || values[i] == last
+                                && (depth > shortest || depth == shortest && atShortest-- > 0)) {
+          evicted.computeIfAbsent(parents.get(i), parent -> Sets.newIdentityHashSet())
+                 .add(candidates.get(i));
+        }
+      }
+      evicted.forEach((parent, children) -> parent.edit().removeIf(children::contains));
+      relink();
     }
+    // When the contexts left still take more than the budget, walking the chain again is put off
+    // until new contexts are worth evicting.
+    evictAbove = Math.max(budget, (int) Math.min(Integer.MAX_VALUE, nodeCount * 11L / 10));
+  }
 
-    Node get(List<V> chain) {
-      Node node = this;
-      for (V link : chain) {
-        if (node == null) {
-          break;
+  /**
+   * Finds the suffix of every node again from the top of both tries, after contexts have been
+   * removed, and recounts the nodes left. The links of shorter contexts are fixed by the time
+   * longer ones need them.
+   */
+  private void relink() {
+    modified();
+    int count = 0;
+    Deque<Node> parents = new ArrayDeque<>();
+    parents.add(root);
+    parents.add(mid);
+    while (!parents.isEmpty()) {
+      Node parent = parents.poll();
+      count++;
+      for (Node child : parent.children) {
+        if (!child.isEnd) {
+          child.link(suffixOf(parent, child.item));
+          parents.add(child);
         }
-        node = node.children.findFirst(n -> n.matches(new Node(link))).orElse(null);
       }
-      return node;
     }
+    nodeCount = count;
+  }
 
-    Node pick() {
-      return children.random();
+  /**
+   * Discards everything computed from the weights of the chain, after contexts have been merged or
+   * removed. Processing items only records the nodes it changes.
+   */
+  private void modified() {
+    if (!terminations.isEmpty()) {
+      terminations.clear();
     }
+    changed.clear();
+  }
 
-    private boolean matches(Node that) {
-      if (that == null) {
-        return false;
+  /**
+   * Finds the node of the longest context that is a proper suffix of the context of parent followed
+   * by link, which is the context generation continues from after picking link.
+   */
+  private Node suffixOf(Node parent, V link) {
+    if (parent == root || parent == mid) {
+      return mid;
+    }
+    for (Node context = parent.suffix; ; context = context.suffix) {
+      Node child = context.children.lookup(link);
+      if (child != null) {
+        return child;
       }
-      if (this.isEnd || that.isEnd) {
-        return this.isEnd && that.isEnd;
+      if (context == mid) {
+        return mid;
       }
-      return this.item == null ? that.item == null : this.item.equals(that.item);
     }
   }
 
   /**
-   * Used by {@link MarkovChain} to break down items of type K1 into chains of V1's, and vice versa.
+   * Merges all chains into the largest one of them, so that the time taken is proportional to the
+   * size of the smaller chains only. The largest chain is modified in place and returned; all other
+   * chains are left unchanged.
+   *
+   * @param chains Non-empty collection of chains of the same max depth.
+   * @return The largest chain, with the weights of all other chains added to it.
    */
-  public static class Composer<K1, V1> {
+  public static <K, V> MarkovChain<K, V> merge(Collection<MarkovChain<K, V>> chains) {
+    checkArgument(!chains.isEmpty(), "Nothing to merge");
+    MarkovChain<K, V> largest = Collections.max(chains, Comparator.comparingInt(c -> c.nodeCount));
+    chains.stream().filter(chain -> chain != largest).forEach(largest::merge);
+    return largest;
+  }
 
-    private final Function<K1, List<V1>> separatorFunction;
-    private final Function<List<V1>, K1> joinerFunction;
+  /**
+   * @return Number of nodes in both tries of this chain, including their roots.
+   */
+  public int nodeCount() {
+    return nodeCount;
+  }
 
-    /**
-     * Create a {@link Composer} that uses provided separator and joiner functions to break K1's
-     * into chains of V1's, and vice versa.
-     *
-     * @param separator Function that separates K1's into chains of V1's.
-     * @param joiner Function that joins chains of V1's into K1's.
-     */
-    public Composer(Function<K1, List<V1>> separator, Function<List<V1>, K1> joiner) {
-      this.separatorFunction = separator;
-      this.joinerFunction = joiner;
+  /**
+   * Generate K of probabilistically sequenced components V, with the seed maxDepth provided. Seed
+   * maxDepth determines how many links back the chain looks when choosing a next segment.
+   *
+   * @param depth Desired seed depth, up to max depth of tree.
+   * @return New K probabilistically resembling sample base, based on seed depth.
+   */
+  public K generate(int depth) {
+    return generate(depth, ThreadLocalRandom.current()::nextDouble);
+  }
+
+  private K generate(int depth, DoubleSupplier random) {
+    depth = Math.max(1, Math.min(depth, maxDepth));
+    return generate(composer.appender(), root, true, 0, depth, random, null);
+  }
+
+  /**
+   * Generate K of probabilistically sequenced components V, with the seed depth provided, that is
+   * made of at least minLength and at most maxLength V's. Items are sampled from the chain's
+   * distribution over items of those lengths, by weighing every pick with the probability that
+   * generation can still end within the length range after it. Those probabilities are computed
+   * for every node and length up to maxLength the first time they are needed, and only those of
+   * the contexts processing changes are computed again. Generation never appends more than
+   * maxLength V's.
+   *
+   * @param depth Desired seed depth, up to max depth of tree.
+   * @param minLength Minimum number of V's in the generated K.
+   * @param maxLength Maximum number of V's in the generated K, up to 65536.
+   * @return New K probabilistically resembling sample base, or null if the chain cannot generate
+   * any K of a length in range.
+   */
+  public K generate(int depth, int minLength, int maxLength) {
+    checkArgument(0 <= minLength && minLength <= maxLength, "Invalid length range");
+    checkArgument(maxLength <= MAX_BOUNDED_LENGTH, "maxLength is more than %s",
+                  MAX_BOUNDED_LENGTH);
+    int seedDepth = Math.max(1, Math.min(depth, maxDepth));
+    synchronized (changed) {
+      if (!changed.isEmpty()) {
+        terminations.values().forEach(termination -> termination.update(changed));
+        changed.clear();
+      }
+    }
+    Termination termination = terminations.computeIfAbsent(seedDepth, Termination::new);
+    if (termination.root(root, maxLength) - termination.root(root, minLength - 1) <= 0) {
+      return null;
+    }
+    DoubleSupplier random = ThreadLocalRandom.current()::nextDouble;
+    Appender<K, V> generated = composer.appender();
+    Node context = root;
+    int length = 0;
+    while (length < seedDepth && (context == root || !context.children.isEmpty())) {
+      int min = minLength - length - 1;
+      int max = maxLength - length - 1;
+      Node node = termination.pick(context, random, length >= minLength,
+                                   child -> termination.root(child, max)
+                                            - termination.root(child, min - 1));
+      if (node == null || node.isEnd) {
+        return generated.finish();
+      }
+      generated.append(node.item);
+      length++;
+      context = node;
+    }
+    if (length == seedDepth) {
+      // The pick after depth links only decides whether the item ends, which it may if it is long
+      // enough, and otherwise continues from the suffix of the links picked.
+      double end = Math.max(0.0, context.children.getKeyWeight(null));
+      double total = context.children.getTotal();
+      double ends = length >= minLength ? end : 0.0;
+      double continues = (total - end)
+                         * (termination.mid(context.suffix, maxLength - length)
+                            - termination.mid(context.suffix, minLength - length - 1));
+      if (total > 0 && random.getAsDouble() * (ends + continues) < ends) {
+        return generated.finish();
+      }
+    }
+    context = context.suffix;
+    while (true) {
+      int min = minLength - length - 1;
+      int max = maxLength - length - 1;
+      Node node = termination.pick(backOff(context), random, length >= minLength, child -> {
+        Node next = child.depth < seedDepth ? child : child.suffix;
+        return termination.mid(next, max) - termination.mid(next, min - 1);
+      });
+      if (node == null || node.isEnd) {
+        return generated.finish();
+      }
+      generated.append(node.item);
+      length++;
+      context = node.depth < seedDepth ? node : node.suffix;
+    }
+  }
+
+  /**
+   * Generate K of probabilistically sequenced components V that starts with the V's of prefix,
+   * with the seed depth provided. The walk through the chain is seeded with prefix in a single
+   * pass and sampling only starts after it, so rare prefixes cost no more than common ones. Links
+   * of prefix the chain has never seen after their context continue the walk from the longest
+   * suffix of the prefix so far that the chain has seen.
+   *
+   * @param prefix Item whose V's start the generated K.
+   * @param depth Desired seed depth, up to max depth of tree.
+   * @return New K starting with prefix, probabilistically resembling sample base.
+   */
+  public K generate(K prefix, int depth) {
+    depth = Math.max(1, Math.min(depth, maxDepth));
+    List<V> links = composer.separate(prefix);
+    Scorer scorer = new Scorer(depth);
+    int length = scorer.walk(links);
+    Appender<K, V> generated = composer.appender();
+    links.forEach(generated::append);
+    return generate(generated, scorer.contexts[length], scorer.inRoot[length], length, depth,
+                    ThreadLocalRandom.current()::nextDouble, null);
+  }
+
+  /**
+   * Continues generating from the context reached after length links, which is a node of the root
+   * trie while inRoot, and otherwise the mid context the next link is picked from. The chain is
+   * read as view sees it, or as it is now if view is null.
+   */
+  private K generate(Appender<K, V> generated, Node context, boolean inRoot, int length,
+                     int depth, DoubleSupplier random, Snapshot view) {
+    if (inRoot) {
+      Node node = context.pick(random, view);
+      while (length < depth) {
+        // A context left without transitions by pruning or eviction is backed off from below.
+        if (node == null && context != root) {
+          break;
+        }
+        if (node == null || node.isEnd) {
+          return generated.finish();
+        }
+        generated.append(node.item);
+        length++;
+        context = node;
+        node = node.pick(random, view);
+      }
+      // End node indicates natural end of chain.
+      if (node != null && node.isEnd) {
+        return generated.finish();
+      }
+      // The suffix of a context of depth links is the context of the last depth - 1 links, which
+      // is where the next link is picked from.
+      context = context.suffix(view);
+    }
+    Node node = pick(context, random, view);
+    while (node != null && !node.isEnd) {
+      generated.append(node.item);
+      // A node shorter than depth links was reached by backing off, and is itself the context of
+      // the last links picked.
+      node = pick(node.depth < depth ? node : node.suffix(view), random, view);
+    }
+    return generated.finish();
+  }
+
+  /**
+   * Finds the context a mid context picks from, which is the longest suffix of it that pruning or
+   * eviction has left with transitions.
+   */
+  private Node backOff(Node context) {
+    while (context.children.isEmpty() && context != mid) {
+      context = context.suffix;
+    }
+    return context;
+  }
+
+  /**
+   * Picks the next node from context, or from the longest shorter context if pruning has left
+   * context without transitions.
+   */
+  private Node pick(Node context, DoubleSupplier random, Snapshot view) {
+    Node node = context.pick(random, view);
+    while (node == null && context != mid) {
+      context = context.suffix(view);
+      node = context.pick(random, view);
+    }
+    return node;
+  }
+
+  /**
+   * Generate a K comprised of probabilistically sequenced components V, with maximum seed maxDepth.
+   * Seed maxDepth determines how many links back the chain looks when choosing a next segment.
+   *
+   * @return Item K probabilistically resembling sample base based on seed maxDepth.
+   */
+  public K generate() {
+    return generate(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Generate count K's, as {@code generate()} would.
+   *
+   * @param count Number of K's to generate.
+   * @return List of count new K's.
+   */
+  public List<K> generateAll(int count) {
+    List<K> generated = new ArrayList<>(count);
+    DoubleSupplier random = ThreadLocalRandom.current()::nextDouble;
+    for (int i = 0; i < count; i++) {
+      generated.add(generate(maxDepth, random));
+    }
+    return generated;
+  }
+
+  /**
+   * Finds the k items this chain is most likely to generate with maximum seed depth, by a beam
+   * search over both tries. Every step extends the beamWidth most likely unfinished items by every
+   * link that may follow them, and collects the items that end. Unfinished items that are already
+   * less likely than the k-th most likely finished item are dropped, since extending an item only
+   * makes it less likely. Items longer than the longest item processed are not looked for. With a
+   * beam at least as wide as the number of items the chain can generate, the result is exact.
+   *
+   * @param k Number of items to find.
+   * @param beamWidth Maximum number of unfinished items extended per step.
+   * @return Up to k items with their log probabilities, most likely first.
+   */
+  public List<Scored<K>> generateTopK(int k, int beamWidth) {
+    return generateTopK(k, beamWidth, longest);
+  }
+
+  /**
+   * Finds the k items of at most maxLength V's this chain is most likely to generate, as {@code
+   * generateTopK(int, int)} does. The search takes at most maxLength + 1 steps, even if the chain
+   * has been left with transitions that are always picked and never end.
+   *
+   * @param k Number of items to find.
+   * @param beamWidth Maximum number of unfinished items extended per step.
+   * @param maxLength Maximum number of V's in the items found.
+   * @return Up to k items with their log probabilities, most likely first.
+   */
+  public List<Scored<K>> generateTopK(int k, int beamWidth, int maxLength) {
+    checkArgument(k > 0 && beamWidth > 0, "k and beam width must be positive");
+    checkArgument(maxLength >= 0, "Max length must not be negative");
+    PriorityQueue<Beam> best = new PriorityQueue<>(Comparator.comparingDouble(b -> b.score));
+    List<Beam> beams = Collections.singletonList(new Beam(null, null, root, true, 0.0));
+    while (!beams.isEmpty()) {
+      List<Beam> extended = new ArrayList<>();
+      for (Beam beam : beams) {
+        beam.extend(extended, best, k);
+      }
+      double bar = best.size() < k ? Double.NEGATIVE_INFINITY : best.peek().score;
+      extended.removeIf(beam -> beam.score <= bar || beam.length > maxLength);
+      extended.sort(Comparator.comparingDouble(beam -> -beam.score));
+      beams = extended.subList(0, Math.min(beamWidth, extended.size()));
+    }
+    List<Beam> found = new ArrayList<>(best);
+    found.sort(Comparator.comparingDouble(beam -> -beam.score));
+    return found.stream().map(Beam::scored).collect(Collectors.toList());
+  }
+
+  /**
+   * Computes the natural logarithm of the probability that {@code generate(depth)} generates item.
+   * Links or ends the chain has never seen after their context add the unseen log probability set
+   * with {@code setUnseenLogProbability(double)}, after which scoring continues from the longest
+   * suffix of the links so far that the chain has seen.
+   *
+   * @param item Item to score.
+   * @param depth Seed depth, up to max depth of tree.
+   * @return Log probability of generating item.
+   */
+  public double logProbability(K item, int depth) {
+    return new Scorer(depth).score(composer.separate(item));
+  }
+
+  /**
+   * Computes the log probability of every item as {@code logProbability(K, int)} would, with
+   * maximum seed depth.
+   *
+   * @param items Items to score.
+   * @return Log probabilities, in the order of items.
+   */
+  public double[] score(List<K> items) {
+    return score(items, maxDepth);
+  }
+
+  /**
+   * Computes the log probability of every item as {@code logProbability(K, int)} would. Items are
+   * scored in parallel batches, ordered so that items sharing a prefix of links are scored one
+   * after another, and the walk over that prefix is only done once. The chain must not be
+   * processed while items are scored.
+   *
+   * @param items Items to score.
+   * @param depth Seed depth, up to max depth of tree.
+   * @return Log probabilities, in the order of items.
+   */
+  public double[] score(List<K> items, int depth) {
+    List<List<V>> separated = items.stream().map(composer::separate).collect(Collectors.toList());
+    // Ordering by hash codes keeps equal links together, so shared prefixes end up adjacent.
+    Comparator<List<V>> byLinks = (a, b) -> {
+      for (int i = 0; i < Math.min(a.size(), b.size()); i++) {
+        int compared = Integer.compare(Objects.hashCode(a.get(i)), Objects.hashCode(b.get(i)));
+        if (compared != 0) {
+          return compared;
+        }
+      }
+      return Integer.compare(a.size(), b.size());
+    };
+    int[] order = IntStream.range(0, separated.size()).boxed()
+                           .sorted(Comparator.comparing(separated::get, byLinks))
+                           .mapToInt(Integer::intValue).toArray();
+    double[] scores = new double[order.length];
+    int batches = (order.length + SCORE_BATCH - 1) / SCORE_BATCH;
+    IntStream.range(0, batches).parallel().forEach(batch -> {
+      Scorer scorer = new Scorer(depth);
+      int end = Math.min(order.length, (batch + 1) * SCORE_BATCH);
+      for (int i = batch * SCORE_BATCH; i < end; i++) {
+        scores[order[i]] = scorer.score(separated.get(order[i]));
+      }
+    });
+    return scores;
+  }
+
+  /**
+   * Sets the log probability that scoring adds for links or ends the chain has never seen after
+   * their context. Defaults to negative infinity, so that items the chain cannot generate score
+   * zero probability.
+   *
+   * @param logProbability Log probability of unseen links.
+   */
+  public void setUnseenLogProbability(double logProbability) {
+    this.unseenLogProbability = logProbability;
+  }
+
+  /**
+   * Returns an infinite stream of K's generated with maximum seed depth. See {@code
+   * generateStream(long, int, long)}.
+   *
+   * @param seed Seed of the random values used to generate K's.
+   * @return Stream of new K's.
+   */
+  public Stream<K> generateStream(long seed) {
+    return generateStream(seed, maxDepth, Long.MAX_VALUE);
+  }
+
+  /**
+   * Returns a stream of count K's, generated with the given seed depth. Every K is generated from
+   * its own {@link SplittableRandom}, seeded from seed and the K's position in the stream, so the
+   * stream is reproducible for a given seed even when it is split and generated in parallel. The
+   * chain must not be processed while the stream is in use.
+   *
+   * @param seed Seed of the random values used to generate K's.
+   * @param depth Desired seed depth, up to max depth of tree.
+   * @param count Number of K's in the stream.
+   * @return Stream of new K's.
+   */
+  public Stream<K> generateStream(long seed, int depth, long count) {
+    return StreamSupport.stream(new Generator(seed, depth, 0, count), false);
+  }
+
+  /**
+   * Compiles the current state of this chain into an immutable {@link FrozenMarkovChain}, which
+   * generates the same items as this chain using a fraction of the memory. Later calls to {@code
+   * process} do not affect the frozen chain.
+   *
+   * @return New {@link FrozenMarkovChain}.
+   */
+  public FrozenMarkovChain<K, V> freeze() {
+    return FrozenMarkovChain.compile(composer, maxDepth, root, mid);
+  }
+
+  /**
+   * Takes a consistent, immutable view of the current state of this chain, and publishes it as the
+   * chain's latest snapshot. Taking a snapshot copies nothing; later changes copy the transitions
+   * of each node they touch once, while any snapshot that sees them is still reachable. Snapshots
+   * must be taken by the thread processing the chain, but may be read by any thread.
+   *
+   * @return New {@link Snapshot}, also returned by {@code published()} until the next one.
+   */
+  public Snapshot snapshot() {
+    expunge();
+    Snapshot snapshot = new Snapshot(epoch++);
+    snapshots.put(snapshot.epoch, new WeakReference<>(snapshot, released));
+    published = snapshot;
+    return snapshot;
+  }
+
+  /**
+   * Returns the latest snapshot taken of this chain. Readers on other threads should get their
+   * snapshots here, which publishes the state of the chain a snapshot sees to them safely.
+   *
+   * @return Latest {@link Snapshot}, or null if none has been taken yet.
+   */
+  public Snapshot published() {
+    return published;
+  }
+
+  /**
+   * Forgets snapshots that are no longer reachable, so that no version is archived for them.
+   */
+  private void expunge() {
+    for (Reference<? extends Snapshot> reference = released.poll(); reference != null;
+         reference = released.poll()) {
+      // Few snapshots are live at once, so scanning for the reference is cheap.
+      snapshots.values().remove(reference);
+    }
+  }
+
+  /**
+   * Writes the current state of this chain to a file, which can be memory-mapped as a {@link
+   * FrozenMarkovChain} with {@code FrozenMarkovChain.map(Path, Composer, TokenCodec)}.
+   *
+   * Interned chains are saved with {@code save(Path, Vocabulary, TokenCodec)} instead, as their
+   * ids mean nothing without the {@link Vocabulary} of their composer.
+   *
+   * @param path File to write, replacing it if it exists.
+   * @param codec Codec to write the chain's V's with.
+   * @throws IOException If the file cannot be written.
+   * @throws IllegalStateException If this chain is interned.
+   */
+  public void save(Path path, TokenCodec<V> codec) throws IOException {
+    freeze().write(path, codec);
+  }
+
+  /**
+   * Writes the current state of this interned chain to a file, with the tokens of vocabulary in
+   * place of their ids. The file is memory-mapped with {@code FrozenMarkovChain.map(Path,
+   * Composer, TokenCodec)} and the composer this chain's composer was interned from.
+   *
+   * @param path File to write, replacing it if it exists.
+   * @param vocabulary {@link Vocabulary} this chain's composer interns into.
+   * @param codec Codec to write the tokens of vocabulary with.
+   * @throws IOException If the file cannot be written.
+   * @throws IllegalArgumentException If this chain is not interned into vocabulary.
+   */
+  public <T> void save(Path path, Vocabulary<T> vocabulary, TokenCodec<T> codec)
+      throws IOException {
+    freeze().write(path, vocabulary, codec);
+  }
+
+  @VisibleForTesting
+  Node get(K item) {
+    return root.get(this.composer.separate(item));
+  }
+
+  @VisibleForTesting
+  Node getMid(K item) {
+    return mid.get(this.composer.separate(item));
+  }
+
+  /**
+   * Policies for deciding which contexts to evict from a chain that is over budget.
+   */
+  public enum Eviction {
+    /**
+     * Evicts the contexts with the lowest accumulated weight first.
+     */
+    LEAST_WEIGHT,
+    /**
+     * Evicts the contexts that were last added to by the oldest items first.
+     */
+    LEAST_RECENT
+  }
+
+  @VisibleForTesting
+  class Node {
+
+    @VisibleForTesting final V item;
+    /**
+     * Transitions out of this node as they are now. Lists seen by a snapshot are never changed;
+     * they are moved to history and copied before the chain changes them.
+     */
+    @VisibleForTesting volatile CompactWeightedList<V, Node> children;
+    final boolean isEnd;
+    /**
+     * Node in mid of the context that is this node's context without its first link. Null for end
+     * nodes and the roots of both tries.
+     */
+    @VisibleForTesting volatile Node suffix;
+    /**
+     * Earlier versions of this node that snapshots may still see, newest first. Written after the
+     * version it archives is replaced, so readers that see a replaced children list or suffix also
+     * see its archived version.
+     */
+    private volatile Version history;
+    /**
+     * Epoch in which children and suffix were last archived, or in which this node was created.
+     */
+    private long version;
+    /**
+     * Number of links in this node's context.
+     */
+    int depth;
+    /**
+     * Number of items processed or chains merged before this node was last added to.
+     */
+    long touched;
+
+    Node(V item) {
+      children = new CompactWeightedList<>(n -> n.item, true);
+      this.item = item;
+      this.isEnd = false;
+      this.version = epoch;
+      nodeCount++;
+    }
+
+    private Node() {
+      this.item = null;
+      this.isEnd = true;
+    }
+
+    Node isEnd(double weight) {
+      // End nodes are the only children keyed on null.
+      return edit().add(weight, null, link -> new Node());
+    }
+
+    /**
+     * Adds the weights of all descendants of that, which may belong to another chain, to the
+     * matching descendants of this node, creating them where they do not exist yet. Every node
+     * created is added to created, and its parent to parents.
+     */
+    void merge(Node that, List<Node> parents, List<Node> created) {
+      Deque<Node> targets = new ArrayDeque<>();
+      Deque<Node> sources = new ArrayDeque<>();
+      targets.push(this);
+      sources.push(that);
+      while (!sources.isEmpty()) {
+        Node target = targets.pop();
+        Node source = sources.pop();
+        for (Node child : source.children) {
+          double weight = source.children.getKeyWeight(child.item);
+          if (child.isEnd) {
+            target.isEnd(weight);
+          } else {
+            Node existing = target.children.lookup(child.item);
+            Node merged = target.edit().add(weight, child.item, newNode);
+            merged.touched = touches;
+            if (existing == null) {
+              parents.add(target);
+              created.add(merged);
+            }
+            targets.push(merged);
+            sources.push(child);
+          }
+        }
+      }
+    }
+
+    Node get(V... chain) {
+      return get(Lists.newArrayList(chain));
+    }
+
+    Node get(List<V> chain) {
+      Node node = this;
+      for (V link : chain) {
+        if (node == null) {
+          break;
+        }
+        node = node.children.lookup(link);
+      }
+      return node;
+    }
+
+    Node pick() {
+      return children.random();
+    }
+
+    Node pick(DoubleSupplier random) {
+      return children.random(random.getAsDouble());
+    }
+
+    Node pick(DoubleSupplier random, Snapshot view) {
+      return children(view).random(random.getAsDouble());
+    }
+
+    /**
+     * @return Transitions out of this node as view sees them, or as they are now if view is null.
+     */
+    CompactWeightedList<V, Node> children(Snapshot view) {
+      // The current value is read before history, so that an archive it was replaced by is seen.
+      CompactWeightedList<V, Node> current = children;
+      Version archived = view == null ? null : archived(view.epoch);
+      return archived == null ? current : archived.children;
+    }
+
+    /**
+     * @return Suffix of this node as view sees it, or as it is now if view is null.
+     */
+    Node suffix(Snapshot view) {
+      Node current = suffix;
+      Version archived = view == null ? null : archived(view.epoch);
+      return archived == null ? current : archived.suffix;
+    }
+
+    /**
+     * Finds the oldest archived version that was replaced after the snapshot of the given epoch,
+     * which is the version that snapshot sees.
+     */
+    private Version archived(long at) {
+      Version found = null;
+      for (Version archived = history; archived != null && archived.until > at;
+           archived = archived.older) {
+        found = archived;
+      }
+      return found;
+    }
+
+    /**
+     * Returns the transitions of this node for the chain to change, archiving them first if a
+     * snapshot may still see them.
+     */
+    CompactWeightedList<V, Node> edit() {
+      if (version != epoch) {
+        archive();
+      }
+      if (!terminations.isEmpty()) {
+        changed.add(this);
+      }
+      return children;
+    }
+
+    /**
+     * Sets the suffix of this node, archiving the old one first if a snapshot may still see it.
+     */
+    void link(Node suffix) {
+      if (this.suffix != suffix) {
+        edit();
+        this.suffix = suffix;
+      }
+    }
+
+    private void archive() {
+      expunge();
+      Version kept = trim(history, snapshots.isEmpty() ? epoch : snapshots.firstKey());
+      if (!snapshots.isEmpty() && snapshots.lastKey() >= version) {
+        history = new Version(children, suffix, epoch, kept);
+        children = children.copy();
+      } else {
+        history = kept;
+      }
+      version = epoch;
+    }
+
+    /**
+     * Copies the versions that snapshots of the oldest epoch or later may see, leaving the archived
+     * versions unchanged for readers still walking them.
+     */
+    private Version trim(Version archived, long oldest) {
+      if (archived == null || archived.until <= oldest) {
+        return null;
+      }
+      Version older = trim(archived.older, oldest);
+      return older == archived.older ? archived
+                                     : new Version(archived.children, archived.suffix,
+                                                   archived.until, older);
+    }
+  }
+
+  /**
+   * State of a node before it was changed in the epoch until, seen by snapshots older than until.
+   */
+  private class Version {
+
+    final CompactWeightedList<V, Node> children;
+    final Node suffix;
+    final long until;
+    final Version older;
+
+    Version(CompactWeightedList<V, Node> children, Node suffix, long until, Version older) {
+      this.children = children;
+      this.suffix = suffix;
+      this.until = until;
+      this.older = older;
+    }
+  }
+
+  /**
+   * Immutable view of a {@link MarkovChain} as it was when {@code snapshot()} was called. Snapshots
+   * share all nodes with their chain, which keeps a copy of a node's transitions only once it
+   * changes them while a snapshot may still see them. Generating from a snapshot takes no locks,
+   * and may run on any number of threads while a single thread keeps processing the chain.
+   */
+  public class Snapshot {
+
+    private final long epoch;
+
+    private Snapshot(long epoch) {
+      this.epoch = epoch;
+    }
+
+    /**
+     * Generate K as {@code MarkovChain.generate(int)} would have when this snapshot was taken.
+     *
+     * @param depth Desired seed depth, up to max depth of tree.
+     * @return New K probabilistically resembling sample base, based on seed depth.
+     */
+    public K generate(int depth) {
+      depth = Math.max(1, Math.min(depth, maxDepth));
+      return MarkovChain.this.generate(composer.appender(), root, true, 0, depth,
+                                       ThreadLocalRandom.current()::nextDouble, this);
+    }
+
+    /**
+     * Generate K as {@code MarkovChain.generate()} would have when this snapshot was taken.
+     *
+     * @return Item K probabilistically resembling sample base based on seed maxDepth.
+     */
+    public K generate() {
+      return generate(maxDepth);
+    }
+
+    /**
+     * Generate count K's, as {@code generate()} would.
+     *
+     * @param count Number of K's to generate.
+     * @return List of count new K's.
+     */
+    public List<K> generateAll(int count) {
+      List<K> generated = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        generated.add(generate(maxDepth));
+      }
+      return generated;
+    }
+  }
+
+  /**
+   * Item being generated by {@code generateTopK}, as a link appended to a previous item. A beam in
+   * the root phase picks its next link from the root trie node of its links, and a beam past it
+   * picks from the mid context generation would continue from, backing off as generation does.
+   */
+  private class Beam {
+
+    final Beam previous;
+    final V item;
+    final Node node;
+    final boolean inRoot;
+    final double score;
+    final int length;
+
+    Beam(Beam previous, V item, Node node, boolean inRoot, double score) {
+      this.previous = previous;
+      this.item = item;
+      this.node = node;
+      this.inRoot = inRoot;
+      this.score = score;
+      this.length = previous == null ? 0 : previous.length + 1;
+    }
+
+    /**
+     * Adds every unfinished item this beam may be extended to to extended, and every finished one
+     * to best, keeping only the k most likely in best.
+     */
+    void extend(List<Beam> extended, PriorityQueue<Beam> best, int k) {
+      Node context = node;
+      if (!inRoot) {
+        while (context.children.isEmpty() && context != mid) {
+          context = context.suffix;
+        }
+      } else if (context.children.isEmpty() && context != root) {
+        // Backs off from a root context left without transitions, as generation does.
+        extended.add(new Beam(previous, item, node.suffix, false, score));
+        return;
+      }
+      double total = 0;
+      for (Node child : context.children) {
+        total += context.children.getKeyWeight(child.item);
+      }
+      for (Node child : context.children) {
+        double picked = score + Math.log(context.children.getKeyWeight(child.item) / total);
+        if (child.isEnd) {
+          finish(new Beam(previous, item, null, false, picked), best, k);
+        } else if (!inRoot) {
+          Node next = child.depth < maxDepth ? child : child.suffix;
+          extended.add(new Beam(this, child.item, next, false, picked));
+        } else if (length + 1 < maxDepth) {
+          extended.add(new Beam(this, child.item, child, true, picked));
+        } else {
+          // After maxDepth links, one more pick from the root trie only decides whether the item
+          // ends, and generation otherwise continues from the suffix of the links picked.
+          double end = Math.max(0.0, child.children.getKeyWeight(null));
+          double weights = 0;
+          for (Node grandchild : child.children) {
+            weights += child.children.getKeyWeight(grandchild.item);
+          }
+          if (end > 0) {
+            finish(new Beam(this, child.item, null, false, picked + Math.log(end / weights)),
+                   best, k);
+          }
+          if (end < weights || weights == 0) {
+            double stay = weights == 0 ? 0.0 : Math.log1p(-end / weights);
+            extended.add(new Beam(this, child.item, child.suffix, false, picked + stay));
+          }
+        }
+      }
+    }
+
+    private void finish(Beam beam, PriorityQueue<Beam> best, int k) {
+      if (best.size() < k) {
+        best.add(beam);
+      } else if (beam.score > best.peek().score) {
+        best.poll();
+        best.add(beam);
+      }
+    }
+
+    Scored<K> scored() {
+      Appender<K, V> generated = composer.appender();
+      List<V> links = new ArrayList<>();
+      for (Beam beam = this; beam != null && beam.previous != null; beam = beam.previous) {
+        links.add(beam.item);
+      }
+      for (int i = links.size() - 1; i >= 0; i--) {
+        generated.append(links.get(i));
+      }
+      return new Scored<>(generated.finish(), score);
+    }
+  }
+
+  /**
+   * Probabilities that generation with one seed depth ends within a number of links, from the
+   * nodes of both tries it can reach. Every node has a table with an entry for each number of
+   * links, and tables are filled a number of links at a time for all nodes, since each entry only
+   * needs entries for as many links or one less. After the chain changes, only the tables of the
+   * changed nodes and of the nodes that read them are filled again.
+   */
+  private class Termination {
+
+    private final int depth;
+    private final Map<Node, double[]> root = new IdentityHashMap<>();
+    private final Map<Node, double[]> mid = new IdentityHashMap<>();
+    /** Nodes whose tables are computed from the table of a node, by node. */
+    private final Map<Node, Set<Node>> readers = new IdentityHashMap<>();
+    /** Number of entries in every table. */
+    private int length;
+
+    Termination(int depth) {
+      this.depth = depth;
+      root.put(MarkovChain.this.root, new double[0]);
+      read(MarkovChain.this.root, new ArrayList<>());
+    }
+
+    /**
+     * @return Probability that generation from a node of the root trie of up to depth links ends
+     * within links more links.
+     */
+    synchronized double root(Node node, int links) {
+      return links < 0 ? 0.0 : tables(links).root.get(node)[links];
+    }
+
+    /**
+     * @return Probability that generation from a mid context ends within links more links.
+     */
+    synchronized double mid(Node context, int links) {
+      return links < 0 ? 0.0 : tables(links).mid.get(context)[links];
+    }
+
+    /**
+     * Fills the tables of changed nodes and of every node whose table is computed from theirs
+     * again, after the chain has changed them.
+     */
+    synchronized void update(Set<Node> changed) {
+      List<Node> found = new ArrayList<>();
+      Deque<Node> pending = new ArrayDeque<>();
+      for (Node node : changed) {
+        if (root.containsKey(node) || mid.containsKey(node)) {
+          read(node, found);
+          pending.push(node);
+        }
+      }
+      Set<Node> affected = Sets.newIdentityHashSet();
+      affected.addAll(found);
+      while (!pending.isEmpty()) {
+        Node node = pending.pop();
+        if (affected.add(node)) {
+          pending.addAll(readers.getOrDefault(node, Collections.emptySet()));
+        }
+      }
+      fill(affected, 0, length);
+    }
+
+    /**
+     * Extends every table to cover links more links, if it does not yet.
+     */
+    private Termination tables(int links) {
+      if (links >= length) {
+        int from = length;
+        length = links + 1;
+        root.replaceAll((node, table) -> Arrays.copyOf(table, length));
+        mid.replaceAll((node, table) -> Arrays.copyOf(table, length));
+        List<Node> nodes = new ArrayList<>(root.keySet());
+        nodes.addAll(mid.keySet());
+        fill(nodes, from, length);
+      }
+      return this;
+    }
+
+    /**
+     * Records which tables the table of node, and of every node it reaches that has no table yet,
+     * is computed from. Nodes given a table are added to found.
+     */
+    private void read(Node node, List<Node> found) {
+      Deque<Node> pending = new ArrayDeque<>();
+      pending.push(node);
+      while (!pending.isEmpty()) {
+        Node reader = pending.pop();
+        boolean inRoot = root.containsKey(reader);
+        Map<Node, double[]> tables = inRoot && sums(reader, true) ? root : mid;
+        for (Node read : reads(reader, inRoot)) {
+          readers.computeIfAbsent(read, key -> Sets.newIdentityHashSet()).add(reader);
+          if (!tables.containsKey(read)) {
+            tables.put(read, new double[length]);
+            found.add(read);
+            pending.push(read);
+          }
+        }
+      }
+    }
+
+    /**
+     * @return Whether the table of node is computed from the tables of its children, rather than
+     * from the table of its suffix.
+     */
+    private boolean sums(Node node, boolean inRoot) {
+      if (inRoot) {
+        return node.depth < depth && (node == MarkovChain.this.root || !node.children.isEmpty());
+      }
+      return node == MarkovChain.this.mid || !node.children.isEmpty();
+    }
+
+    /**
+     * @return Nodes whose tables the table of node is computed from.
+     */
+    private List<Node> reads(Node node, boolean inRoot) {
+      if (!sums(node, inRoot)) {
+        return Collections.singletonList(node.suffix);
+      }
+      List<Node> reads = new ArrayList<>();
+      for (Node child : node.children) {
+        if (!child.isEnd) {
+          reads.add(inRoot || child.depth < depth ? child : child.suffix);
+        }
+      }
+      return reads;
+    }
+
+    /**
+     * Fills the entries from up to, but excluding, to of the tables of nodes. Within each number of
+     * links, the tables read for the same number of links are filled first: mid contexts from
+     * their children before those backed off to their shorter suffixes, and both before the root
+     * trie nodes that read them.
+     */
+    private void fill(Collection<Node> nodes, int from, int to) {
+      List<Node> ordered = new ArrayList<>(nodes);
+      ordered.sort(Comparator.comparingInt(this::rank).thenComparingInt(node -> node.depth));
+      // Tables read are looked up once, so that each entry only takes a sum over its reads.
+      int size = ordered.size();
+      double[][] tables = new double[size][];
+      boolean[] sums = new boolean[size];
+      double[] ends = new double[size];
+      double[][] weights = new double[size][];
+      double[][][] reads = new double[size][][];
+      for (int i = 0; i < size; i++) {
+        Node node = ordered.get(i);
+        boolean inRoot = root.containsKey(node);
+        tables[i] = (inRoot ? root : mid).get(node);
+        sums[i] = sums(node, inRoot);
+        double total = node.children.getTotal();
+        double end = total > 0 ? Math.max(0.0, node.children.getKeyWeight(null)) / total : 0.0;
+        List<Node> read = reads(node, inRoot);
+        reads[i] = new double[read.size()][];
+        weights[i] = new double[read.size()];
+        for (int j = 0; j < reads[i].length; j++) {
+          reads[i][j] = (inRoot && sums[i] ? root : mid).get(read.get(j));
+        }
+        if (sums[i]) {
+          int j = 0;
+          for (Node child : node.children) {
+            if (!child.isEnd) {
+              weights[i][j++] = node.children.getKeyWeight(child.item) / total;
+            }
+          }
+        }
+        // A mid context backed off to its suffix ends as its suffix does, while the pick after
+        // depth links of the root trie only decides whether the item ends.
+        ends[i] = sums[i] || inRoot ? end : 0.0;
+      }
+      for (int links = from; links < to; links++) {
+        for (int i = 0; i < size; i++) {
+          double entry;
+          if (!sums[i]) {
+            entry = ends[i] + (1 - ends[i]) * reads[i][0][links];
+          } else {
+            entry = ends[i];
+            for (int j = 0; links > 0 && j < reads[i].length; j++) {
+              entry += weights[i][j] * reads[i][j][links - 1];
+            }
+          }
+          tables[i][links] = entry;
+        }
+      }
+    }
+
+    private int rank(Node node) {
+      boolean inRoot = root.containsKey(node);
+      return (inRoot ? 2 : 0) + (sums(node, inRoot) ? 0 : 1);
+    }
+
+    /**
+     * Picks a child of context in proportion to its weight times how likely generation is to end
+     * within the length range after it.
+     *
+     * @param canEnd Whether the item is long enough to end here.
+     * @param inRange Probability that generation ends within the length range after a link child.
+     * @return Picked child, or null if no child can end within the length range.
+     */
+    Node pick(Node context, DoubleSupplier random, boolean canEnd,
+              ToDoubleFunction<Node> inRange) {
+      List<Node> children = context.children;
+      double[] weights = new double[children.size()];
+      double total = 0.0;
+      for (int i = 0; i < weights.length; i++) {
+        Node child = children.get(i);
+        double weight = context.children.getKeyWeight(child.item);
+        total += weights[i] = child.isEnd ? (canEnd ? weight : 0.0)
+                                          : weight * inRange.applyAsDouble(child);
+      }
+      if (total <= 0) {
+        return null;
+      }
+      double remaining = random.getAsDouble() * total;
+      for (int i = 0; i < weights.length; i++) {
+        remaining -= weights[i];
+        if (remaining < 0 && weights[i] > 0) {
+          return children.get(i);
+        }
+      }
+      for (int i = weights.length - 1; ; i--) {
+        if (weights[i] > 0) {
+          return children.get(i);
+        }
+      }
+    }
+  }
+
+  /**
+   * Walks items through both tries as generation would have picked their links, keeping the state
+   * of the walk after every link of the last item scored, so that the next item can resume after
+   * the links it shares with it.
+   */
+  private class Scorer {
+
+    private final int depth;
+    private final double unseen = unseenLogProbability;
+    private List<V> previous = Collections.emptyList();
+    Node[] contexts = nodes(16);
+    boolean[] inRoot = new boolean[16];
+    private double[] scores = new double[16];
+
+    Scorer(int depth) {
+      this.depth = Math.max(1, Math.min(depth, maxDepth));
+      contexts[0] = root;
+      inRoot[0] = true;
+    }
+
+    double score(List<V> links) {
+      int size = walk(links);
+      Node context = contexts[size];
+      if (!inRoot[size]) {
+        context = backOff(context);
+      } else if (context.children.isEmpty() && context != root) {
+        context = backOff(context.suffix);
+      }
+      return scores[size] + probability(context, context.children.getKeyWeight(null));
+    }
+
+    /**
+     * Walks links, resuming after the links they share with the last links walked.
+     *
+     * @return Number of links walked, which is the index of the state after them.
+     */
+    int walk(List<V> links) {
+      int size = links.size();
+      if (contexts.length <= size) {
+        int capacity = Math.max(size + 1, contexts.length * 2);
+        contexts = Arrays.copyOf(contexts, capacity);
+        inRoot = Arrays.copyOf(inRoot, capacity);
+        scores = Arrays.copyOf(scores, capacity);
+      }
+      int shared = 0;
+      while (shared < Math.min(size, previous.size())
+             && Objects.equals(links.get(shared), previous.get(shared))) {
+        shared++;
+      }
+      for (int i = shared; i < size; i++) {
+        advance(links, i);
+      }
+      previous = links;
+      return size;
+    }
+
+    /**
+     * Sets the state after link i of links from the state before it.
+     */
+    private void advance(List<V> links, int i) {
+      V link = links.get(i);
+      Node context = contexts[i];
+      double score = scores[i];
+      if (inRoot[i]) {
+        if (i == depth) {
+          // The pick after depth links only decided that generation continues.
+          double end = Math.max(0.0, context.children.getKeyWeight(null));
+          double total = context.children.getTotal();
+          score += total == 0 ? 0.0 : end < total ? Math.log1p(-end / total) : unseen;
+          context = context.suffix;
+        } else if (context.children.isEmpty() && context != root) {
+          context = context.suffix;
+        } else {
+          Node child = context.children.lookup(link);
+          if (child == null) {
+            set(i + 1, unseenInRoot(links, i), false, score + unseen);
+          } else {
+            set(i + 1, child, true,
+                score + probability(context, context.children.getKeyWeight(link)));
+          }
+          return;
+        }
+      }
+      context = backOff(context);
+      Node child = context.children.lookup(link);
+      if (child == null || child.isEnd) {
+        set(i + 1, suffixOf(context, link), false, score + unseen);
+      } else {
+        set(i + 1, child.depth < depth ? child : child.suffix, false,
+            score + probability(context, context.children.getKeyWeight(link)));
+      }
+    }
+
+    /**
+     * Finds the mid context after link i of links, which the root trie has not seen after the links
+     * before it. That is the longest suffix of the links so far, link i included, that the mid trie
+     * has seen, shortened to fewer than depth links.
+     */
+    private Node unseenInRoot(List<V> links, int i) {
+      V link = links.get(i);
+      // The links before i as a mid context, if the mid trie has seen them, or else the longest
+      // suffix of them it has seen.
+      Node context = mid.get(links.subList(0, i));
+      if (context == null) {
+        context = contexts[i].suffix;
+      }
+      while (true) {
+        Node child = context.children.lookup(link);
+        if (child != null) {
+          return child.depth < depth ? child : child.suffix;
+        }
+        if (context == mid) {
+          return mid;
+        }
+        context = context.suffix;
+      }
+    }
+
+    private void set(int i, Node context, boolean inRoot, double score) {
+      this.contexts[i] = context;
+      this.inRoot[i] = inRoot;
+      this.scores[i] = score;
+    }
+
+    private double probability(Node context, double weight) {
+      return weight > 0 ? Math.log(weight / context.children.getTotal()) : unseen;
+    }
+  }
+
+  /**
+   * Splittable source of generated K's, where the K at each position is generated from a random
+   * sequence that only depends on the seed and that position.
+   */
+  private class Generator implements Spliterator<K> {
+
+    private final long seed;
+    private final int depth;
+    private long index;
+    private final long fence;
+
+    Generator(long seed, int depth, long index, long fence) {
+      this.seed = seed;
+      this.depth = depth;
+      this.index = index;
+      this.fence = fence;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super K> action) {
+      if (index >= fence) {
+        return false;
+      }
+      action.accept(generate(depth, new SplittableRandom(mix(seed + index++))::nextDouble));
+      return true;
+    }
+
+    @Override
+    public Spliterator<K> trySplit() {
+      long middle = (index + fence) >>> 1;
+      if (middle <= index) {
+        return null;
+      }
+      Generator prefix = new Generator(seed, depth, index, middle);
+      index = middle;
+      return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+      return fence - index;
+    }
+
+    @Override
+    public int characteristics() {
+      return ORDERED | SIZED | SUBSIZED | IMMUTABLE;
+    }
+
+    /**
+     * Scrambles consecutive positions into unrelated seeds (Stafford's variant 13 of the MurmurHash3
+     * finalizer), so the random sequences of neighbouring positions do not overlap.
+     */
+    private long mix(long z) {
+      z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+      z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+      return z ^ (z >>> 31);
+    }
+  }
+
+  /**
+   * Used by {@link MarkovChain} to break down items of type K1 into chains of V1's, and vice versa.
+   * A composer either adapts list-based separator and joiner functions onto {@link
+   * StreamingComposer}, or wraps a {@link StreamingComposer} and only builds lists where a caller
+   * asks for them.
+   */
+  public static class Composer<K1, V1> implements StreamingComposer<K1, V1> {
+
+    private final Function<K1, List<V1>> separatorFunction;
+    private final Function<List<V1>, K1> joinerFunction;
+    private final StreamingComposer<K1, V1> streaming;
+    /** {@link Vocabulary} that V1's are ids of, or null if they are not interned. */
+    private final Vocabulary<?> vocabulary;
+
+    /**
+     * Create a {@link Composer} that uses provided separator and joiner functions to break K1's
+     * into chains of V1's, and vice versa.
+     *
+     * @param separator Function that separates K1's into chains of V1's.
+     * @param joiner Function that joins chains of V1's into K1's.
+     */
+    public Composer(Function<K1, List<V1>> separator, Function<List<V1>, K1> joiner) {
+      this.separatorFunction = separator;
+      this.joinerFunction = joiner;
+      this.streaming = null;
+      this.vocabulary = null;
+    }
+
+    /**
+     * Create a {@link Composer} that separates and joins through streaming, without building lists
+     * of V1's unless they are asked for.
+     *
+     * @param streaming Composer to separate and join K1's with.
+     */
+    public Composer(StreamingComposer<K1, V1> streaming) {
+      this(streaming, null);
+    }
+
+    private Composer(StreamingComposer<K1, V1> streaming, Vocabulary<?> vocabulary) {
+      this.separatorFunction = item -> {
+        List<V1> links = new ArrayList<>();
+        streaming.separate(item, links::add);
+        return links;
+      };
+      this.joinerFunction = links -> {
+        Appender<K1, V1> appender = streaming.appender();
+        links.forEach(appender::append);
+        return appender.finish();
+      };
+      this.streaming = streaming;
+      this.vocabulary = vocabulary;
+    }
+
+    /**
+     * Create a {@link Composer} that separates K1's into the ids of their V1's in vocabulary, and
+     * joins chains of ids by mapping them back to V1's.
+     *
+     * @param vocabulary {@link Vocabulary} to intern V1's into.
+     * @return New {@link Composer} of ids.
+     */
+    public Composer<K1, Integer> interned(Vocabulary<V1> vocabulary) {
+      return new Composer<>(new StreamingComposer<K1, Integer>() {
+        @Override
+        public void separate(K1 item, Consumer<? super Integer> sink) {
+          Composer.this.separate(item, link -> sink.accept(vocabulary.intern(link)));
+        }
+
+        @Override
+        public Appender<K1, Integer> appender() {
+          Appender<K1, V1> appender = Composer.this.appender();
+          return new Appender<K1, Integer>() {
+            @Override
+            public void append(Integer id) {
+              appender.append(vocabulary.token(id));
+            }
+
+            @Override
+            public K1 finish() {
+              return appender.finish();
+            }
+          };
+        }
+      }, vocabulary);
+    }
+
+    boolean isInterned() {
+      return vocabulary != null;
+    }
+
+    /**
+     * @return Whether V1's are ids of vocabulary.
+     */
+    boolean isInternedInto(Vocabulary<?> vocabulary) {
+      return this.vocabulary != null && this.vocabulary == vocabulary;
+    }
+
+    @Override
+    public void separate(K1 item, Consumer<? super V1> sink) {
+      if (streaming != null) {
+        streaming.separate(item, sink);
+      } else {
+        separatorFunction.apply(item).forEach(sink);
+      }
+    }
+
+    @Override
+    public Appender<K1, V1> appender() {
+      if (streaming != null) {
+        return streaming.appender();
+      }
+      return new Appender<K1, V1>() {
+        private List<V1> links = new ArrayList<>();
+
+        @Override
+        public void append(V1 link) {
+          links.add(link);
+        }
+
+        @Override
+        public K1 finish() {
+          // The joiner may keep the list it is given, so it is not reused.
+          List<V1> joined = links;
+          links = new ArrayList<>();
+          return joinerFunction.apply(joined);
+        }
+      };
     }
 
     List<V1> separate(K1 t) {
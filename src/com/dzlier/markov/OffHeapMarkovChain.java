@@ -0,0 +1,537 @@
+/*
+ * Collection utility classes
+ * Copyright (C) 2016 Dane Zeke Liergaard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dzlier.markov;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import com.dzlier.markov.MarkovChain.Composer;
+import com.dzlier.markov.StreamingComposer.Appender;
+import com.google.common.annotations.VisibleForTesting;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Variant of {@link MarkovChain} that keeps its tries in direct memory instead of on the heap, so
+ * that the size of the chain does not add to garbage collection pauses. Nodes and the transitions
+ * between them are fixed-size records in segments of direct {@link ByteBuffer}s, and transitions
+ * are found through an open-addressing hash table keyed on their parent node and the id of their
+ * V, which is also held in direct memory. Only the {@link Vocabulary} of distinct V's stays on the
+ * heap. Nodes with more than a few transitions also get a block of running sums of their
+ * transition weights, which picks binary search instead of walking every transition.
+ *
+ * Processing and generation behave as they do for {@link MarkovChain}. The chain is not
+ * thread-safe, and must be closed to release its memory.
+ */
+public class OffHeapMarkovChain<K, V> implements AutoCloseable {
+
+  @VisibleForTesting static final int ROOT = 0;
+  @VisibleForTesting static final int MID = 1;
+  @VisibleForTesting static final int NONE = -1;
+  @VisibleForTesting static final int END = -2;
+  /** Largest number of transitions a pick walks. Nodes with more are picked from sum blocks. */
+  @VisibleForTesting static final int SMALL = 8;
+
+  // Node records: total weight, end weight, first transition, suffix node, V id and sum block.
+  private static final int NODE_BYTES = 32;
+  private static final int TOTAL = 0;
+  private static final int END_WEIGHT = 8;
+  private static final int FIRST = 16;
+  private static final int SUFFIX = 20;
+  private static final int TOKEN = 24;
+  private static final int SUMS = 28;
+  // Transition records: weight, V id, child node, next transition of the same parent, parent.
+  private static final int EDGE_BYTES = 24;
+  private static final int WEIGHT = 0;
+  private static final int EDGE_TOKEN = 8;
+  private static final int CHILD = 12;
+  private static final int NEXT = 16;
+  private static final int PARENT = 20;
+  // Sum block records: running sum of transition weights and the child they end at. The first
+  // record of a block holds the total weight of the node when the block was filled, the number of
+  // records the block has room for, and the number it holds.
+  private static final int SUM_BYTES = 16;
+  private static final int SUM = 0;
+  private static final int SUM_CHILD = 8;
+  private static final int CAPACITY = 8;
+  private static final int COUNT = 12;
+
+  private static final Consumer<ByteBuffer> FREE = freeing();
+
+  private final Composer<K, V> composer;
+  private final Vocabulary<V> vocabulary = new Vocabulary<>();
+  private final int maxDepth;
+  private final Region nodes = new Region(NODE_BYTES);
+  private final Region edges = new Region(EDGE_BYTES);
+  private final Region sums = new Region(SUM_BYTES);
+  /** Hash table of transition ids plus one, where zero marks an empty slot. */
+  private Region slots = new Region(Integer.BYTES);
+  private int slotMask;
+  private int[] tokens = new int[16];
+  private int tokenCount;
+  private final Consumer<V> sink = link -> {
+    if (tokenCount == tokens.length) {
+      tokens = Arrays.copyOf(tokens, tokenCount * 2);
+    }
+    tokens[tokenCount++] = vocabulary.intern(link);
+  };
+  private int[] cursors = new int[0];
+  private boolean closed;
+
+  /**
+   * Create an {@link OffHeapMarkovChain} that accepts and generates objects of type K by breaking
+   * them down into type V via the provided {@link Composer}. Max depth option limits the size of
+   * the trees the chain creates.
+   *
+   * @param composer Composer that can break down K's into V's, and vice versa.
+   * @param maxDepth Maximum depth of chain.
+   */
+  public OffHeapMarkovChain(Composer<K, V> composer, int maxDepth) {
+    this.composer = composer;
+    this.maxDepth = Math.max(1, maxDepth);
+    slotMask = (int) slots.reserve(Region.RECORDS) - 1;
+    newNode(NONE);
+    newNode(NONE);
+  }
+
+  /**
+   * Create an {@link OffHeapMarkovChain} that accepts and generates objects of type K by breaking
+   * them down into type V via the provided {@link Composer}.
+   *
+   * @param composer Composer that can break down K's into V's, and vice versa.
+   */
+  public OffHeapMarkovChain(Composer<K, V> composer) {
+    this(composer, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Splits the provided item K into series of 0 or more V's, and adds them to the markov chain.
+   *
+   * @param item K to split.
+   */
+  public void process(K item) {
+    process(item, 1.0);
+  }
+
+  /**
+   * Similar to {@code process(K)}, but forces the given weight instead of using 1.
+   *
+   * @param item Item to be processed.
+   * @param weight Forced added weight of object in chain.
+   */
+  public void process(K item, double weight) {
+    checkState(!closed, "Chain is closed");
+    tokenCount = 0;
+    composer.separate(item, sink);
+    int size = tokenCount;
+    if (size == 0) {
+      end(ROOT, weight);
+      return;
+    }
+    // Same sliding window of cursors as MarkovChain, one per start position still being extended.
+    int width = Math.min(maxDepth, size);
+    if (cursors.length < width) {
+      cursors = new int[Math.max(width, cursors.length * 2)];
+    }
+    for (int position = 0; position < size; position++) {
+      int token = tokens[position];
+      cursors[position % width] = position == 0 ? ROOT : MID;
+      int oldest = Math.max(0, position - maxDepth + 1);
+      for (int start = position; start >= oldest; start--) {
+        int slot = start % width;
+        int node = add(cursors[slot], token, weight);
+        if (nodes.getInt(node, SUFFIX) == NONE) {
+          nodes.putInt(node, SUFFIX, start == position ? MID : cursors[(start + 1) % width]);
+        }
+        cursors[slot] = node;
+      }
+    }
+    if (size <= maxDepth) {
+      end(cursors[0], weight);
+    }
+    for (int start = Math.max(1, size - maxDepth + 1); start < size; start++) {
+      end(cursors[start % width], weight);
+    }
+    end(MID, weight);
+  }
+
+  /**
+   * Generate K of probabilistically sequenced components V, with the seed depth provided.
+   *
+   * @param depth Desired seed depth, up to max depth of tree.
+   * @return New K probabilistically resembling sample base, based on seed depth.
+   */
+  public K generate(int depth) {
+    checkState(!closed, "Chain is closed");
+    depth = Math.max(1, Math.min(depth, maxDepth));
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    Appender<K, V> generated = composer.appender();
+    int length = 0;
+    int context = ROOT;
+    int node = pick(ROOT, random.nextDouble());
+    while (length < depth) {
+      if (node == NONE || node == END) {
+        return generated.finish();
+      }
+      generated.append(vocabulary.token(nodes.getInt(node, TOKEN)));
+      length++;
+      context = node;
+      node = pick(node, random.nextDouble());
+    }
+    // As in MarkovChain, the pick after depth links only decides whether the item ends here.
+    if (node == END) {
+      return generated.finish();
+    }
+    node = pick(nodes.getInt(context, SUFFIX), random.nextDouble());
+    while (node != NONE && node != END) {
+      generated.append(vocabulary.token(nodes.getInt(node, TOKEN)));
+      node = pick(nodes.getInt(node, SUFFIX), random.nextDouble());
+    }
+    return generated.finish();
+  }
+
+  /**
+   * Generate a K comprised of probabilistically sequenced components V, with maximum seed depth.
+   *
+   * @return Item K probabilistically resembling sample base.
+   */
+  public K generate() {
+    return generate(maxDepth);
+  }
+
+  /**
+   * @return Number of nodes in both tries of this chain, including their roots.
+   */
+  public int nodeCount() {
+    return nodes.size;
+  }
+
+  /**
+   * @return Number of bytes of direct memory held by this chain.
+   */
+  public long memoryUsage() {
+    return nodes.capacity() + edges.capacity() + slots.capacity() + sums.capacity();
+  }
+
+  /**
+   * Releases the direct memory of this chain, after which it can no longer be used.
+   */
+  @Override
+  public void close() {
+    if (!closed) {
+      closed = true;
+      nodes.release();
+      edges.release();
+      slots.release();
+      sums.release();
+    }
+  }
+
+  @VisibleForTesting
+  int child(int node, V link) {
+    int edge = find(node, vocabulary.id(link));
+    return edge == NONE ? NONE : edges.getInt(edge, CHILD);
+  }
+
+  @VisibleForTesting
+  double weight(int node, V link) {
+    int edge = find(node, vocabulary.id(link));
+    return edge == NONE ? -1.0 : edges.getDouble(edge, WEIGHT);
+  }
+
+  @VisibleForTesting
+  double endWeight(int node) {
+    return nodes.getDouble(node, END_WEIGHT);
+  }
+
+  @VisibleForTesting
+  int suffix(int node) {
+    return nodes.getInt(node, SUFFIX);
+  }
+
+  private int newNode(int token) {
+    int node = nodes.allocate();
+    nodes.putDouble(node, TOTAL, 0.0);
+    nodes.putDouble(node, END_WEIGHT, 0.0);
+    nodes.putInt(node, FIRST, NONE);
+    nodes.putInt(node, SUFFIX, NONE);
+    nodes.putInt(node, TOKEN, token);
+    nodes.putInt(node, SUMS, NONE);
+    return node;
+  }
+
+  /**
+   * Adds weight to the transition from parent on token, creating it and its child node if they do
+   * not exist yet.
+   *
+   * @return Child node of the transition.
+   */
+  private int add(int parent, int token, double weight) {
+    int edge = find(parent, token);
+    if (edge == NONE) {
+      edge = edges.allocate();
+      edges.putDouble(edge, WEIGHT, 0.0);
+      edges.putInt(edge, EDGE_TOKEN, token);
+      edges.putInt(edge, CHILD, newNode(token));
+      edges.putInt(edge, NEXT, nodes.getInt(parent, FIRST));
+      edges.putInt(edge, PARENT, parent);
+      nodes.putInt(parent, FIRST, edge);
+      insert(edge);
+    }
+    edges.putDouble(edge, WEIGHT, edges.getDouble(edge, WEIGHT) + weight);
+    nodes.putDouble(parent, TOTAL, nodes.getDouble(parent, TOTAL) + weight);
+    return edges.getInt(edge, CHILD);
+  }
+
+  private void end(int node, double weight) {
+    nodes.putDouble(node, END_WEIGHT, nodes.getDouble(node, END_WEIGHT) + weight);
+    nodes.putDouble(node, TOTAL, nodes.getDouble(node, TOTAL) + weight);
+  }
+
+  private int find(int parent, int token) {
+    if (token < 0) {
+      return NONE;
+    }
+    for (int slot = hash(parent, token) & slotMask; ; slot = (slot + 1) & slotMask) {
+      int edge = slots.getInt(slot, 0) - 1;
+      if (edge == NONE
+          || edges.getInt(edge, PARENT) == parent && edges.getInt(edge, EDGE_TOKEN) == token) {
+        return edge;
+      }
+    }
+  }
+
+  private void insert(int edge) {
+    if (edges.size > (slotMask + 1L) * 3 / 4 && slotMask != Integer.MAX_VALUE) {
+      // Keeps the table at most three quarters full, by moving every transition into a table twice
+      // as large. The largest table has 2^31 slots, which is more than transition ids can fill.
+      slots.release();
+      slots = new Region(Integer.BYTES);
+      slotMask = (int) (slots.reserve((slotMask + 1L) * 2) - 1);
+      for (int moved = 0; moved < edge; moved++) {
+        place(moved);
+      }
+    }
+    place(edge);
+  }
+
+  private void place(int edge) {
+    int slot = hash(edges.getInt(edge, PARENT), edges.getInt(edge, EDGE_TOKEN)) & slotMask;
+    while (slots.getInt(slot, 0) != 0) {
+      slot = (slot + 1) & slotMask;
+    }
+    slots.putInt(slot, 0, edge + 1);
+  }
+
+  private static int hash(int parent, int token) {
+    long z = ((long) parent << 32) | (token & 0xffffffffL);
+    z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+    return (int) (z ^ (z >>> 33));
+  }
+
+  /**
+   * Picks a child of node in proportion to its transition weight, or END in proportion to the end
+   * weight of node.
+   *
+   * @return Picked child, END, or NONE if node has neither transitions nor end weight.
+   */
+  @VisibleForTesting
+  int pick(int node, double uniform) {
+    double total = nodes.getDouble(node, TOTAL);
+    if (total <= 0) {
+      return NONE;
+    }
+    int block = nodes.getInt(node, SUMS);
+    if (block == NONE || sums.getDouble(block, SUM) != total) {
+      double remaining = uniform * total;
+      int last = NONE;
+      int walked = 0;
+      for (int edge = nodes.getInt(node, FIRST); edge != NONE; edge = edges.getInt(edge, NEXT)) {
+        if (++walked > SMALL) {
+          break;
+        }
+        remaining -= edges.getDouble(edge, WEIGHT);
+        last = edge;
+        if (remaining < 0) {
+          return edges.getInt(edge, CHILD);
+        }
+      }
+      if (walked <= SMALL) {
+        return nodes.getDouble(node, END_WEIGHT) > 0 || last == NONE ? END
+                                                                     : edges.getInt(last, CHILD);
+      }
+      block = fill(node, block, total);
+    }
+    // Binary search for the first record whose running sum is above the value picked.
+    double value = uniform * total;
+    int count = sums.getInt(block, COUNT);
+    int low = block + 1;
+    int high = block + count;
+    if (value >= sums.getDouble(high, SUM)) {
+      return nodes.getDouble(node, END_WEIGHT) > 0 ? END : sums.getInt(high, SUM_CHILD);
+    }
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (sums.getDouble(middle, SUM) > value) {
+        high = middle;
+      } else {
+        low = middle + 1;
+      }
+    }
+    return sums.getInt(low, SUM_CHILD);
+  }
+
+  /**
+   * Fills the sum block of node with the running sums of its transition weights, in the block it
+   * has if there is room, and otherwise in a new block of twice the room. Blocks are filled again
+   * on the first pick after the weights of the node change, which changes its total weight.
+   *
+   * @return Sum block of node.
+   */
+  private int fill(int node, int block, double total) {
+    int count = 0;
+    for (int edge = nodes.getInt(node, FIRST); edge != NONE; edge = edges.getInt(edge, NEXT)) {
+      count++;
+    }
+    if (block == NONE || sums.getInt(block, CAPACITY) < count) {
+      int capacity = block == NONE ? count : Math.max(count, sums.getInt(block, CAPACITY) * 2);
+      block = sums.allocate();
+      for (int i = 0; i < capacity; i++) {
+        sums.allocate();
+      }
+      sums.putInt(block, CAPACITY, capacity);
+      nodes.putInt(node, SUMS, block);
+    }
+    double sum = 0.0;
+    int record = block;
+    for (int edge = nodes.getInt(node, FIRST); edge != NONE; edge = edges.getInt(edge, NEXT)) {
+      sum += edges.getDouble(edge, WEIGHT);
+      record++;
+      sums.putDouble(record, SUM, sum);
+      sums.putInt(record, SUM_CHILD, edges.getInt(edge, CHILD));
+    }
+    sums.putDouble(block, SUM, total);
+    sums.putInt(block, COUNT, count);
+    return block;
+  }
+
+  /**
+   * Finds a way to release the memory of a direct buffer before it is garbage collected, which
+   * depends on the Java version. Buffers are left to the garbage collector if none is found.
+   */
+  private static Consumer<ByteBuffer> freeing() {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field field = unsafeClass.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      Object unsafe = field.get(null);
+      Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      return buffer -> {
+        try {
+          invokeCleaner.invoke(unsafe, buffer);
+        } catch (ReflectiveOperationException e) {
+          // Left to the garbage collector.
+        }
+      };
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return buffer -> {
+        try {
+          Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+          cleanerMethod.setAccessible(true);
+          Object cleaner = cleanerMethod.invoke(buffer);
+          cleaner.getClass().getMethod("clean").invoke(cleaner);
+        } catch (ReflectiveOperationException | RuntimeException ignored) {
+          // Left to the garbage collector.
+        }
+      };
+    }
+  }
+
+  /**
+   * Growable array of fixed-size records, held in direct buffers of {@code RECORDS} records each
+   * so that no single buffer has to be reallocated or exceed the size limit of a buffer.
+   */
+  private static final class Region {
+
+    static final int SHIFT = 16;
+    static final int RECORDS = 1 << SHIFT;
+    private static final int MASK = RECORDS - 1;
+
+    private final int recordBytes;
+    private final List<ByteBuffer> segments = new ArrayList<>();
+    private int size;
+
+    Region(int recordBytes) {
+      this.recordBytes = recordBytes;
+    }
+
+    int allocate() {
+      if (size == segments.size() << SHIFT) {
+        segments.add(ByteBuffer.allocateDirect(RECORDS * recordBytes)
+                               .order(ByteOrder.nativeOrder()));
+      }
+      return size++;
+    }
+
+    /**
+     * Allocates zeroed records for all ids below count, which is rounded up to whole segments.
+     *
+     * @return Number of records allocated.
+     */
+    long reserve(long count) {
+      while ((long) segments.size() << SHIFT < count) {
+        segments.add(ByteBuffer.allocateDirect(RECORDS * recordBytes)
+                               .order(ByteOrder.nativeOrder()));
+      }
+      size = (int) Math.min(Integer.MAX_VALUE, (long) segments.size() << SHIFT);
+      return (long) segments.size() << SHIFT;
+    }
+
+    int getInt(int id, int offset) {
+      return segments.get(id >>> SHIFT).getInt((id & MASK) * recordBytes + offset);
+    }
+
+    void putInt(int id, int offset, int value) {
+      segments.get(id >>> SHIFT).putInt((id & MASK) * recordBytes + offset, value);
+    }
+
+    double getDouble(int id, int offset) {
+      return segments.get(id >>> SHIFT).getDouble((id & MASK) * recordBytes + offset);
+    }
+
+    void putDouble(int id, int offset, double value) {
+      segments.get(id >>> SHIFT).putDouble((id & MASK) * recordBytes + offset, value);
+    }
+
+    long capacity() {
+      return (long) segments.size() * RECORDS * recordBytes;
+    }
+
+    void release() {
+      segments.forEach(FREE);
+      segments.clear();
+      size = 0;
+    }
+  }
+}
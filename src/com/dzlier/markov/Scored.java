@@ -0,0 +1,52 @@
+/*
+ * Collection utility classes
+ * Copyright (C) 2016 Dane Zeke Liergaard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dzlier.markov;
+
+/**
+ * Item paired with the natural logarithm of the probability that a {@link MarkovChain} generates
+ * it.
+ *
+ * @param <K> Type of the item scored.
+ */
+public final class Scored<K> {
+
+  private final K item;
+  private final double logProbability;
+
+  Scored(K item, double logProbability) {
+    this.item = item;
+    this.logProbability = logProbability;
+  }
+
+  public K getItem() {
+    return item;
+  }
+
+  public double getLogProbability() {
+    return logProbability;
+  }
+
+  public double getProbability() {
+    return Math.exp(logProbability);
+  }
+
+  @Override
+  public String toString() {
+    return item + " (" + logProbability + ")";
+  }
+}
@@ -0,0 +1,280 @@
+/*
+ * Collection utility classes
+ * Copyright (C) 2016 Dane Zeke Liergaard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dzlier.markov;
+
+import com.dzlier.markov.MarkovChain.Composer;
+import com.dzlier.markov.StreamingComposer.Appender;
+import com.dzlier.weight.CompactWeightedList;
+import com.google.common.annotations.VisibleForTesting;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Variant of {@link MarkovChain} that keeps a single trie instead of one of item prefixes and one
+ * of item suffixes. Every suffix of every item is added to the trie, including the item itself,
+ * and each node keeps the weights of its children and its end from items that start with its
+ * context apart from the weights past the start of items. Generation picks from the first while
+ * it is still at the start of an item, and from the second after, so it generates the same items
+ * with the same probabilities as a {@link MarkovChain} of the same max depth. Contexts that are
+ * both item prefixes and suffixes of other contexts, which are most of them, are only stored once.
+ * Unlike {@link MarkovChain}, it cannot be pruned, frozen, saved or snapshotted.
+ */
+public class SharedMarkovChain<K, V> {
+
+  @VisibleForTesting final Node trie;
+  @VisibleForTesting final Composer<K, V> composer;
+  /** Picked instead of a child when the chain ends. */
+  private final Node end;
+
+  private final int maxDepth;
+  private int nodeCount;
+  private final List<V> links = new ArrayList<>();
+  private final Consumer<V> sink = links::add;
+  private final List<Node> cursors = new ArrayList<>();
+
+  /**
+   * Create a {@link SharedMarkovChain} that accepts and generates objects of type K by breaking
+   * them down into type V via the provided {@link Composer}. Max depth option limits the size of
+   * the trie the chain creates.
+   *
+   * @param composer Composer that can break down K's into V's, and vice versa.
+   * @param maxDepth Maximum depth of chain.
+   */
+  public SharedMarkovChain(Composer<K, V> composer, int maxDepth) {
+    this.trie = new Node(null);
+    this.end = new Node(null);
+    this.nodeCount = 1;
+    this.composer = composer;
+    this.maxDepth = Math.max(1, maxDepth);
+  }
+
+  /**
+   * Create a {@link SharedMarkovChain} that accepts and generates objects of type K by breaking
+   * them down into type V via the provided {@link Composer}.
+   *
+   * @param composer Composer that can break down K's into V's, and vice versa.
+   */
+  public SharedMarkovChain(Composer<K, V> composer) {
+    this(composer, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Splits the provided item K into series of 0 or more V's, and adds them to the markov chain.
+   *
+   * @param item K to split.
+   */
+  public void process(K item) {
+    process(item, 1.0);
+  }
+
+  /**
+   * Similar to {@code process(K)}, but forces the given weight instead of using 1.
+   *
+   * @param item Item to be processed.
+   * @param weight Forced added weight of object in chain.
+   */
+  public void process(K item, double weight) {
+    try {
+      composer.separate(item, sink);
+      process(links, weight);
+    } finally {
+      links.clear();
+    }
+  }
+
+  private void process(List<V> chain, double weight) {
+    int size = chain.size();
+    if (size == 0) {
+      trie.end(weight, true);
+      return;
+    }
+    // Same sliding window of cursors as MarkovChain, except that the cursor of the whole item
+    // walks the shared trie too, counting its weight as weight from the start of an item.
+    int width = Math.min(maxDepth, size);
+    while (cursors.size() < width) {
+      cursors.add(null);
+    }
+    for (int position = 0; position < size; position++) {
+      V link = chain.get(position);
+      cursors.set(position % width, trie);
+      int oldest = Math.max(0, position - maxDepth + 1);
+      for (int start = position; start >= oldest; start--) {
+        int slot = start % width;
+        Node node = cursors.get(slot).add(link, weight, start == 0);
+        if (node.suffix == null) {
+          node.suffix = start == position ? trie : cursors.get((start + 1) % width);
+        }
+        cursors.set(slot, node);
+      }
+    }
+    if (size <= maxDepth) {
+      cursors.get(0).end(weight, true);
+    }
+    for (int start = Math.max(1, size - maxDepth + 1); start < size; start++) {
+      cursors.get(start % width).end(weight, false);
+    }
+    trie.end(weight, false);
+    for (int i = 0; i < width; i++) {
+      cursors.set(i, null);
+    }
+  }
+
+  /**
+   * Generate K of probabilistically sequenced components V, with the seed depth provided. Seed
+   * depth determines how many links back the chain looks when choosing a next segment.
+   *
+   * @param depth Desired seed depth, up to max depth of tree.
+   * @return New K probabilistically resembling sample base, based on seed depth.
+   */
+  public K generate(int depth) {
+    depth = Math.max(1, Math.min(depth, maxDepth));
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    Appender<K, V> generated = composer.appender();
+    int length = 0;
+    Node context = trie;
+    Node node = trie.pick(true, random.nextDouble());
+    while (length < depth) {
+      if (node == null || node == end) {
+        return generated.finish();
+      }
+      generated.append(node.item);
+      length++;
+      context = node;
+      node = node.pick(true, random.nextDouble());
+    }
+    // As in MarkovChain, the pick after depth links only decides whether the item ends here.
+    if (node == end) {
+      return generated.finish();
+    }
+    node = context.suffix.pick(false, random.nextDouble());
+    while (node != null && node != end) {
+      generated.append(node.item);
+      node = node.suffix.pick(false, random.nextDouble());
+    }
+    return generated.finish();
+  }
+
+  /**
+   * Generate a K comprised of probabilistically sequenced components V, with maximum seed depth.
+   *
+   * @return Item K probabilistically resembling sample base based on seed depth.
+   */
+  public K generate() {
+    return generate(maxDepth);
+  }
+
+  /**
+   * @return Number of nodes in the trie of this chain, including its root.
+   */
+  public int nodeCount() {
+    return nodeCount;
+  }
+
+  @VisibleForTesting
+  Node get(K item) {
+    Node node = trie;
+    for (V link : composer.separate(item)) {
+      if (node == null) {
+        break;
+      }
+      node = node.child(link);
+    }
+    return node;
+  }
+
+  @VisibleForTesting
+  class Node {
+
+    @VisibleForTesting final V item;
+    /**
+     * Weights of the children and the end, keyed on null, from the start of items and past it.
+     * Each is laid out as compactly as the transitions of a {@link MarkovChain} node, and is null
+     * until the node has any weight to hold in it, so a context only reached from the start of
+     * items, or only past it, keeps a single list.
+     */
+    @VisibleForTesting CompactWeightedList<V, Node> starts;
+    @VisibleForTesting CompactWeightedList<V, Node> children;
+    /**
+     * Node of the context that is this node's context without its first link. Null for the root
+     * of the trie.
+     */
+    @VisibleForTesting Node suffix;
+
+    Node(V item) {
+      this.item = item;
+    }
+
+    Node add(V link, double weight, boolean atStart) {
+      Node existing = child(link);
+      Node child = weights(atStart).add(weight, link, key -> existing != null ? existing
+                                                                              : new Node(key));
+      if (existing == null && child != null) {
+        nodeCount++;
+      }
+      return child;
+    }
+
+    void end(double weight, boolean atStart) {
+      weights(atStart).add(weight, null, key -> end);
+    }
+
+    /**
+     * @return Child of this node for link, whether it is reached from the start of items or past
+     * it, or null if there is none.
+     */
+    @VisibleForTesting
+    Node child(V link) {
+      Node child = children == null ? null : children.lookup(link);
+      return child != null || starts == null ? child : starts.lookup(link);
+    }
+
+    /**
+     * @return Weight of the child for link, or of the end if link is null, from the start of items
+     * or past it.
+     */
+    @VisibleForTesting
+    double weight(V link, boolean atStart) {
+      CompactWeightedList<V, Node> weights = atStart ? starts : children;
+      return weights == null ? 0.0 : Math.max(0.0, weights.getKeyWeight(link));
+    }
+
+    private CompactWeightedList<V, Node> weights(boolean atStart) {
+      if (atStart && starts == null) {
+        starts = new CompactWeightedList<>(n -> n.item, true);
+      } else if (!atStart && children == null) {
+        children = new CompactWeightedList<>(n -> n.item, true);
+      }
+      return atStart ? starts : children;
+    }
+
+    /**
+     * Picks a random child based on child weights from the start of items, or past it, or the end
+     * node.
+     *
+     * @param atStart Whether to pick by weights from the start of items.
+     * @param uniform random value in [0, 1)
+     * @return Child picked, end node, or null if this node has no weight to pick by.
+     */
+    Node pick(boolean atStart, double uniform) {
+      CompactWeightedList<V, Node> weights = atStart ? starts : children;
+      return weights == null ? null : weights.random(uniform);
+    }
+  }
+}
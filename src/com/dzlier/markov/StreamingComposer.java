@@ -0,0 +1,70 @@
+/*
+ * Collection utility classes
+ * Copyright (C) 2016 Dane Zeke Liergaard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dzlier.markov;
+
+import java.util.function.Consumer;
+
+/**
+ * Breaks K's down into V's and builds them back up one V at a time, without collecting V's into
+ * intermediate lists. {@link MarkovChain} processes and generates through this interface, and
+ * {@link MarkovChain.Composer} adapts list-based separator and joiner functions onto it.
+ *
+ * @param <K> Type of the items composed.
+ * @param <V> Type of the links items are composed of.
+ */
+public interface StreamingComposer<K, V> {
+
+  /**
+   * Separates item into its V's, passing each of them to sink in order.
+   *
+   * @param item Item to separate.
+   * @param sink Consumer of the V's of item.
+   */
+  void separate(K item, Consumer<? super V> sink);
+
+  /**
+   * Returns an appender to join V's into a new K with. An appender is only used by one thread, for
+   * one K at a time, so implementations may reuse appenders per thread.
+   *
+   * @return Appender with no V's appended yet.
+   */
+  Appender<K, V> appender();
+
+  /**
+   * Joins V's into a K as they are appended.
+   *
+   * @param <K> Type of the items composed.
+   * @param <V> Type of the links items are composed of.
+   */
+  interface Appender<K, V> {
+
+    /**
+     * Appends the next V of the K being joined.
+     *
+     * @param link V to append.
+     */
+    void append(V link);
+
+    /**
+     * Finishes joining, after which the appender holds no V's.
+     *
+     * @return K joined from all V's appended since the last call.
+     */
+    K finish();
+  }
+}
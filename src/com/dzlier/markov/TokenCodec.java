@@ -0,0 +1,74 @@
+/*
+ * Collection utility classes
+ * Copyright (C) 2016 Dane Zeke Liergaard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dzlier.markov;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes and reads the V's of a {@link MarkovChain} when saving it to, or loading it from, a file.
+ *
+ * @param <V> Token type being written.
+ */
+public interface TokenCodec<V> {
+
+  /** Codec for {@link String} tokens, written as modified UTF-8. */
+  TokenCodec<String> STRINGS = new TokenCodec<String>() {
+    @Override
+    public void write(String token, DataOutput out) throws IOException {
+      out.writeUTF(token);
+    }
+
+    @Override
+    public String read(DataInput in) throws IOException {
+      return in.readUTF();
+    }
+  };
+
+  /** Codec for {@link Integer} tokens. */
+  TokenCodec<Integer> INTEGERS = new TokenCodec<Integer>() {
+    @Override
+    public void write(Integer token, DataOutput out) throws IOException {
+      out.writeInt(token);
+    }
+
+    @Override
+    public Integer read(DataInput in) throws IOException {
+      return in.readInt();
+    }
+  };
+
+  /**
+   * Writes a single token.
+   *
+   * @param token Token to write.
+   * @param out Output to write the token to.
+   * @throws IOException If the token cannot be written.
+   */
+  void write(V token, DataOutput out) throws IOException;
+
+  /**
+   * Reads a single token written by {@code write}.
+   *
+   * @param in Input to read the token from.
+   * @return Token read.
+   * @throws IOException If the token cannot be read.
+   */
+  V read(DataInput in) throws IOException;
+}
@@ -0,0 +1,91 @@
+/*
+ * Collection utility classes
+ * Copyright (C) 2016 Dane Zeke Liergaard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dzlier.markov;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns tokens of type V into dense int ids, starting at 0, so that a {@link MarkovChain} can key
+ * its nodes on small ids instead of full V references. Ids are assigned in the order tokens are
+ * first seen, and are never reassigned. Tokens can be interned and looked up from several threads
+ * at once.
+ *
+ * @param <V> Token type being interned.
+ */
+public class Vocabulary<V> {
+
+  private final Map<V, Integer> ids = new ConcurrentHashMap<>();
+  private volatile Object[] tokens = new Object[16];
+  private int size = 0;
+
+  /**
+   * Returns the id of the token, assigning it the next free id if it has not been seen before.
+   *
+   * @param token Token to intern.
+   * @return Id of the token.
+   */
+  public int intern(V token) {
+    Integer id = ids.get(token);
+    return id == null ? add(token) : id;
+  }
+
+  /**
+   * Returns the id of the token without interning it.
+   *
+   * @param token Token to look up.
+   * @return Id of the token, or -1 if it has not been interned.
+   */
+  public int id(V token) {
+    return ids.getOrDefault(token, -1);
+  }
+
+  /**
+   * Returns the token that was assigned the given id.
+   *
+   * @param id Id returned by {@code intern(V)}.
+   * @return Token with that id.
+   */
+  @SuppressWarnings("unchecked")
+  public V token(int id) {
+    return (V) tokens[id];
+  }
+
+  /**
+   * @return Number of distinct tokens interned so far.
+   */
+  public int size() {
+    return ids.size();
+  }
+
+  private synchronized int add(V token) {
+    Integer id = ids.get(token);
+    if (id != null) {
+      return id;
+    }
+    if (size == tokens.length) {
+      tokens = Arrays.copyOf(tokens, size * 2);
+    }
+    // The token must be stored before its id is published, so any thread that sees the id also
+    // sees the token.
+    tokens[size] = token;
+    ids.put(token, size);
+    return size++;
+  }
+}
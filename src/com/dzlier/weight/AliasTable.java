@@ -0,0 +1,89 @@
+/*
+ * Collection utility classes
+ * Copyright (C) 2016 Dane Zeke Liergaard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.dzlier.weight;
+
+/**
+ * Vose alias table over a fixed list of weights, which picks a weighted random index in constant
+ * time. Tables are immutable; a new table must be built whenever the weights change.
+ */
+class AliasTable {
+
+  private final double[] probability;
+  private final int[] alias;
+
+  /**
+   * Builds the table in time linear to the number of weights.
+   *
+   * @param weights Non-empty array of positive weights.
+   */
+  AliasTable(double[] weights) {
+    int size = weights.length;
+    probability = new double[size];
+    alias = new int[size];
+
+    double total = 0.0;
+    for (double weight : weights) {
+      total += weight;
+    }
+    double[] scaled = new double[size];
+    int[] small = new int[size];
+    int[] large = new int[size];
+    int smallSize = 0;
+    int largeSize = 0;
+    for (int i = 0; i < size; i++) {
+      scaled[i] = weights[i] * size / total;
+      if (scaled[i] < 1.0) {
+        small[smallSize++] = i;
+      } else {
+        large[largeSize++] = i;
+      }
+    }
+    while (smallSize > 0 && largeSize > 0) {
+      int less = small[--smallSize];
+      int more = large[--largeSize];
+      probability[less] = scaled[less];
+      alias[less] = more;
+      scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+      if (scaled[more] < 1.0) {
+        small[smallSize++] = more;
+      } else {
+        large[largeSize++] = more;
+      }
+    }
+    // Whatever is left over is only off from 1 by rounding error.
+    while (largeSize > 0) {
+      probability[large[--largeSize]] = 1.0;
+    }
+    while (smallSize > 0) {
+      probability[small[--smallSize]] = 1.0;
+    }
+  }
+
+  /**
+   * Picks an index, using a single uniform value both to choose a column and to flip its coin.
+   *
+   * @param uniform Random value in [0, 1).
+   * @return Index picked with probability proportional to its weight.
+   */
+  int pick(double uniform) {
+    double scaled = uniform * probability.length;
+    int column = Math.min((int) scaled, probability.length - 1);
+    return scaled - column < probability[column] ? column : alias[column];
+  }
+}
@@ -54,7 +54,7 @@ public class CombiningWeightedList<E> extends WeightedList<E> {
    * @param element element to add or combine with pre-existing elements.
    * @return Element added to list, or preexisting list item if combined.
    */
-  public E add(Double weight, E element) {
+  public E add(double weight, E element) {
     if (weight <= 0 || element == null) {
       return null;
     }
@@ -62,6 +62,7 @@ public class CombiningWeightedList<E> extends WeightedList<E> {
     total += weight;
     Node toAdd = new Node(weight, element);
     combiningList.add(toAdd);
+    modified();
     return Optional.ofNullable(combiningList.get(toAdd)).map(n -> n.element).orElse(null);
   }
 
@@ -0,0 +1,540 @@
+/*
+ * Collection utility classes
+ * Copyright (C) 2016 Dane Zeke Liergaard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.dzlier.weight;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+/**
+ * Weighted list that combines elements sharing the same key, like {@link IndexedWeightedList}, but
+ * lays its entries out to fit how many it holds. The layout changes as entries are added and
+ * removed, without changing how the list behaves:
+ * <ul>
+ * <li>An empty list, or a list of a single entry, holds no storage besides itself.</li>
+ * <li>Up to {@link #SMALL} entries are kept in arrays sorted by key hash, and looked up by binary
+ * search.</li>
+ * <li>Larger lists keep entries in the order they were added, and index them by key in an
+ * open-addressing hash table.</li>
+ * </ul>
+ * Entries are iterated in the order of their layout, so the order of a small list depends on the
+ * hashes of its keys rather than on the order entries were added.
+ * <p>
+ * Weights are stored as primitive doubles. Counted lists store them as int counts instead, which
+ * halves their size, for as long as every weight is a whole number that fits in an int. The first
+ * weight that does not switches the list back to doubles.
+ *
+ * @param <K> Key type elements are indexed by. May be null.
+ * @param <E> The element type to choose from
+ */
+public class CompactWeightedList<K, E> extends AbstractList<E> {
+
+  /**
+   * Largest number of entries kept in a sorted array. Lists that grow past this are hashed.
+   */
+  @VisibleForTesting static final int SMALL = 8;
+
+  private final Function<E, K> keyFunction;
+  private final boolean counted;
+  private int size;
+  private double total;
+  /**
+   * Entry of a list that holds one entry and no arrays.
+   */
+  private E only;
+  private double onlyWeight;
+  /**
+   * Entries, once the list has held more than one entry. Their weights are held in counts while
+   * every weight is a count, and in weights otherwise.
+   */
+  private Object[] elements;
+  private int[] counts;
+  private double[] weights;
+  /**
+   * Position of each entry plus one, keyed by key hash, for lists of more than SMALL entries.
+   * Empty slots hold 0.
+   */
+  private int[] table;
+  private AliasTable aliasTable;
+
+  /**
+   * List that combines elements as it adds them, using keyFunction to decide whether to combine.
+   *
+   * @param keyFunction {@link Function} that returns the key of an element. Elements with equal
+   * keys are combined.
+   */
+  public CompactWeightedList(Function<E, K> keyFunction) {
+    this(keyFunction, false);
+  }
+
+  /**
+   * List that combines elements as it adds them, and optionally stores weights as counts.
+   *
+   * @param keyFunction {@link Function} that returns the key of an element. Elements with equal
+   * keys are combined.
+   * @param counted Whether to store weights as int counts while they are all whole numbers.
+   */
+  public CompactWeightedList(Function<E, K> keyFunction, boolean counted) {
+    this.keyFunction = keyFunction;
+    this.counted = counted;
+  }
+
+  /**
+   * Adds an element with given weight. If an element with the same key already exists in list,
+   * adds the weight to that element instead.
+   *
+   * @param weight weight to initialize element with, or add to existing element.
+   * @param element element to add or combine with pre-existing element.
+   * @return Element added to list, or preexisting list item if combined.
+   */
+  public E add(double weight, E element) {
+    if (weight <= 0 || element == null) {
+      return null;
+    }
+    return add(weight, keyFunction.apply(element), key -> element);
+  }
+
+  /**
+   * Adds element with weight of 1.
+   *
+   * @param element element to add to list
+   * @return Whether list was modified by this add.
+   */
+  @Override
+  public boolean add(E element) {
+    return add(1.0, element) != null || element == null;
+  }
+
+  /**
+   * Adds weight to the element with the given key, creating the element with factory only if no
+   * element with that key exists yet.
+   *
+   * @param weight weight to initialize element with, or add to existing element.
+   * @param key key of the element to add weight to.
+   * @param factory creates the element for key if the list does not contain it.
+   * @return Element of the list with the given key.
+   */
+  public E add(double weight, K key, Function<K, E> factory) {
+    if (weight <= 0) {
+      return null;
+    }
+    int index = find(key);
+    E element;
+    if (index >= 0) {
+      element = elementAt(index);
+      setWeight(index, weightAt(index) + weight);
+    } else {
+      element = factory.apply(key);
+      insert(-index - 1, weight, element);
+    }
+    total += weight;
+    aliasTable = null;
+    return element;
+  }
+
+  /**
+   * Finds the element with the given key.
+   *
+   * @param key key of the element to find.
+   * @return Element with key, or null if the list contains no such element.
+   */
+  public E lookup(K key) {
+    int index = find(key);
+    return index < 0 ? null : elementAt(index);
+  }
+
+  /**
+   * Gets the weight of the element with the given key.
+   *
+   * @param key key of the element to get the weight of.
+   * @return the weight of the element with key, or -1 if the list contains no such element.
+   */
+  public double getKeyWeight(K key) {
+    int index = find(key);
+    return index < 0 ? -1.0 : weightAt(index);
+  }
+
+  /**
+   * @return the sum of the weights of all entries in the list
+   */
+  public double getTotal() {
+    return total;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public E get(int index) {
+    Preconditions.checkElementIndex(index, size);
+    return elementAt(index);
+  }
+
+  /**
+   * Returns a random entry based on element weights.
+   *
+   * @return randomly weighted entry
+   */
+  public E random() {
+    return random(ThreadLocalRandom.current().nextDouble());
+  }
+
+  /**
+   * Returns an entry based on element weights, picked by the given uniform random value instead of
+   * an internal source of randomness. Equal values pick equal entries as long as the list does not
+   * change. Small lists are picked by a scan of their weights; larger lists by an alias table,
+   * which is built on the first pick after the list changes.
+   *
+   * @param uniform random value in [0, 1)
+   * @return randomly weighted entry
+   */
+  public E random(double uniform) {
+    if (size == 0) {
+      return null;
+    }
+    if (size == 1) {
+      return elementAt(0);
+    }
+    if (size <= SMALL) {
+      double target = uniform * total;
+      for (int i = 0; i < size - 1; i++) {
+        target -= weightAt(i);
+        if (target < 0) {
+          return elementAt(i);
+        }
+      }
+      return elementAt(size - 1);
+    }
+    AliasTable table = aliasTable;
+    if (table == null) {
+      table = new AliasTable(weights());
+      aliasTable = table;
+    }
+    return elementAt(table.pick(uniform));
+  }
+
+  /**
+   * Removes every entry lighter than minWeight. The total weight of the list shrinks by the weight
+   * of the removed entries, so the remaining entries are picked in proportion to each other.
+   *
+   * @param minWeight smallest weight an entry must have to stay in the list
+   * @return removed elements
+   */
+  public List<E> removeBelow(double minWeight) {
+    return remove(i -> weightAt(i) < minWeight);
+  }
+
+  /**
+   * Keeps the num heaviest entries and removes the rest. Entries of equal weight are kept in the
+   * order they are iterated.
+   *
+   * @param num number of entries to keep
+   * @return removed elements
+   */
+  public List<E> retainTop(int num) {
+    if (num >= size) {
+      return new ArrayList<>();
+    }
+    boolean[] kept = new boolean[size];
+    IntStream.range(0, size).boxed()
+             .sorted(Comparator.comparingDouble(i -> -weightAt(i)))
+             .limit(Math.max(num, 0))
+             .forEach(i -> kept[i] = true);
+    return remove(i -> !kept[i]);
+  }
+
+  @Override
+  public boolean removeIf(Predicate<? super E> filter) {
+    return !remove(i -> filter.test(elementAt(i))).isEmpty();
+  }
+
+  /**
+   * Releases storage left over from removed or grown entries, sizing the list to the entries it
+   * still holds.
+   */
+  public void compact() {
+    if (!isCompact()) {
+      layout(Arrays.copyOf(elements, size), weights());
+    }
+  }
+
+  /**
+   * @return whether {@code compact()} would leave the list as it is, because its storage is already
+   * sized to the entries it holds.
+   */
+  public boolean isCompact() {
+    if (elements == null) {
+      return true;
+    }
+    if (elements.length != size) {
+      return false;
+    }
+    // Counted lists go back to storing weights as counts once every weight is one again.
+    return counts != null || !counted
+           || !Arrays.stream(weights).allMatch(CompactWeightedList::isCount);
+  }
+
+  /**
+   * Copies this list, sized to the entries it holds. Entries keep their order, so the copy picks
+   * the same entries as this list for the same random values.
+   *
+   * @return New list holding the entries of this list with the same weights.
+   */
+  public CompactWeightedList<K, E> copy() {
+    CompactWeightedList<K, E> copy = new CompactWeightedList<>(keyFunction, counted);
+    if (elements == null) {
+      copy.size = size;
+      copy.total = total;
+      copy.only = only;
+      copy.onlyWeight = onlyWeight;
+    } else {
+      copy.layout(Arrays.copyOf(elements, size), weights());
+    }
+    return copy;
+  }
+
+  /**
+   * @return whether weights are currently stored as counts
+   */
+  @VisibleForTesting
+  boolean isCounting() {
+    return counts != null;
+  }
+
+  @SuppressWarnings("unchecked")
+  private E elementAt(int index) {
+    return elements == null ? only : (E) elements[index];
+  }
+
+  private double weightAt(int index) {
+    if (elements == null) {
+      return onlyWeight;
+    }
+    return counts != null ? counts[index] : weights[index];
+  }
+
+  private void setWeight(int index, double weight) {
+    if (elements == null) {
+      onlyWeight = weight;
+    } else if (counts == null) {
+      weights[index] = weight;
+    } else if (isCount(weight)) {
+      counts[index] = (int) weight;
+    } else {
+      weights = new double[counts.length];
+      for (int i = 0; i < size; i++) {
+        weights[i] = counts[i];
+      }
+      counts = null;
+      weights[index] = weight;
+    }
+  }
+
+  private static boolean isCount(double weight) {
+    return weight == (int) weight;
+  }
+
+  private double[] weights() {
+    return IntStream.range(0, size).mapToDouble(this::weightAt).toArray();
+  }
+
+  /**
+   * Stores the weights of all entries, as counts if they are all counts in a counted list.
+   */
+  private void store(double[] newWeights) {
+    counts = null;
+    weights = null;
+    if (counted && Arrays.stream(newWeights).allMatch(CompactWeightedList::isCount)) {
+      counts = Arrays.stream(newWeights).mapToInt(weight -> (int) weight).toArray();
+    } else {
+      weights = newWeights;
+    }
+  }
+
+  private int hashAt(int index) {
+    return hash(keyFunction.apply(elementAt(index)));
+  }
+
+  private static int hash(Object key) {
+    int hash = key == null ? 0 : key.hashCode();
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * Finds the position of the entry with the given key.
+   *
+   * @return position of the entry, or -(position to insert it at) - 1 if there is no such entry.
+   */
+  private int find(K key) {
+    if (size == 0) {
+      return -1;
+    }
+    int hash = hash(key);
+    if (table != null) {
+      int mask = table.length - 1;
+      for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+        int index = table[slot] - 1;
+        if (Objects.equals(keyFunction.apply(elementAt(index)), key)) {
+          return index;
+        }
+      }
+      return -size - 1;
+    }
+    // Binary search for the first entry whose hash is not below hash, then scan equal hashes.
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (hashAt(middle) < hash) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    for (; low < size && hashAt(low) == hash; low++) {
+      if (Objects.equals(keyFunction.apply(elementAt(low)), key)) {
+        return low;
+      }
+    }
+    return -low - 1;
+  }
+
+  private void insert(int index, double weight, E element) {
+    modCount++;
+    aliasTable = null;
+    if (size == 0) {
+      only = element;
+      onlyWeight = weight;
+      size = 1;
+      return;
+    }
+    if (elements == null) {
+      elements = new Object[] {only, null};
+      store(new double[] {onlyWeight, 0});
+      only = null;
+      onlyWeight = 0;
+    } else if (size == elements.length) {
+      elements = Arrays.copyOf(elements, size * 2);
+      if (counts != null) {
+        counts = Arrays.copyOf(counts, size * 2);
+      } else {
+        weights = Arrays.copyOf(weights, size * 2);
+      }
+    }
+    System.arraycopy(elements, index, elements, index + 1, size - index);
+    if (counts != null) {
+      System.arraycopy(counts, index, counts, index + 1, size - index);
+    } else {
+      System.arraycopy(weights, index, weights, index + 1, size - index);
+    }
+    elements[index] = element;
+    size++;
+    setWeight(index, weight);
+    if (table != null && size * 4 <= table.length * 3) {
+      index(index);
+    } else if (size > SMALL) {
+      table = new int[Integer.highestOneBit(size * 2) * 2];
+      for (int i = 0; i < size; i++) {
+        index(i);
+      }
+    }
+  }
+
+  private void index(int index) {
+    int mask = table.length - 1;
+    int slot = hashAt(index) & mask;
+    while (table[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    table[slot] = index + 1;
+  }
+
+  private List<E> remove(IntPredicate filter) {
+    List<E> removed = new ArrayList<>();
+    Object[] keptElements = new Object[size];
+    double[] keptWeights = new double[size];
+    int kept = 0;
+    for (int i = 0; i < size; i++) {
+      if (filter.test(i)) {
+        removed.add(elementAt(i));
+      } else {
+        keptElements[kept] = elementAt(i);
+        keptWeights[kept++] = weightAt(i);
+      }
+    }
+    if (!removed.isEmpty()) {
+      layout(Arrays.copyOf(keptElements, kept), Arrays.copyOf(keptWeights, kept));
+    }
+    return removed;
+  }
+
+  /**
+   * Replaces the entries of the list with the given ones, choosing the layout that fits how many
+   * there are. The arrays must be sized to the entries, and are not copied for hashed lists.
+   */
+  @SuppressWarnings("unchecked")
+  private void layout(Object[] newElements, double[] newWeights) {
+    modCount++;
+    aliasTable = null;
+    size = newElements.length;
+    total = Arrays.stream(newWeights).sum();
+    elements = null;
+    counts = null;
+    weights = null;
+    table = null;
+    only = size == 1 ? (E) newElements[0] : null;
+    onlyWeight = size == 1 ? newWeights[0] : 0;
+    if (size < 2) {
+      return;
+    }
+    if (size > SMALL) {
+      elements = newElements;
+      store(newWeights);
+      table = new int[Integer.highestOneBit(size * 2) * 2];
+      for (int i = 0; i < size; i++) {
+        index(i);
+      }
+      return;
+    }
+    // Sort entries by key hash, keeping entries with equal hashes in the order they were.
+    int[] hashes = Arrays.stream(newElements).mapToInt(e -> hash(keyFunction.apply((E) e)))
+                         .toArray();
+    Integer[] order = IntStream.range(0, size).boxed().toArray(Integer[]::new);
+    Arrays.sort(order, Comparator.comparingInt(i -> hashes[i]));
+    elements = new Object[size];
+    double[] sortedWeights = new double[size];
+    for (int i = 0; i < size; i++) {
+      elements[i] = newElements[order[i]];
+      sortedWeights[i] = newWeights[order[i]];
+    }
+    store(sortedWeights);
+  }
+}
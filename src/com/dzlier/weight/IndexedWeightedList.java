@@ -0,0 +1,140 @@
+/*
+ * Collection utility classes
+ * Copyright (C) 2016 Dane Zeke Liergaard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.dzlier.weight;
+
+import com.sun.javafx.collections.ObservableListWrapper;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * {@link WeightedList} that combines elements sharing the same key as they are added. Elements are
+ * indexed by key in a hash table, so adding, combining and looking up elements does not scan the
+ * list.
+ *
+ * @param <K> Key type elements are indexed by. May be null.
+ * @param <E> The element type to choose from
+ */
+public class IndexedWeightedList<K, E> extends WeightedList<E> {
+
+  private final Function<E, K> keyFunction;
+  private Map<K, Node> index = new HashMap<>();
+
+  /**
+   * List that combines elements as it adds them, using keyFunction to decide whether to combine.
+   *
+   * @param keyFunction {@link Function} that returns the key of an element. Elements with equal
+   * keys are combined.
+   */
+  public IndexedWeightedList(Function<E, K> keyFunction) {
+    super();
+    this.keyFunction = keyFunction;
+  }
+
+  /**
+   * Adds an element with given weight. If an element with the same key already exists in list,
+   * adds the weight to that element instead.
+   *
+   * @param weight weight to initialize element with, or add to existing element.
+   * @param element element to add or combine with pre-existing element.
+   * @return Element added to list, or preexisting list item if combined.
+   */
+  @Override
+  public E add(double weight, E element) {
+    if (weight <= 0 || element == null) {
+      return null;
+    }
+    return add(weight, keyFunction.apply(element), key -> element);
+  }
+
+  /**
+   * Adds weight to the element with the given key, creating the element with factory only if no
+   * element with that key exists yet.
+   *
+   * @param weight weight to initialize element with, or add to existing element.
+   * @param key key of the element to add weight to.
+   * @param factory creates the element for key if the list does not contain it.
+   * @return Element of the list with the given key.
+   */
+  public E add(double weight, K key, Function<K, E> factory) {
+    if (weight <= 0) {
+      return null;
+    }
+    Node node = index.get(key);
+    if (node == null) {
+      node = new Node(weight, factory.apply(key));
+      index.put(key, node);
+      backingList.add(node);
+    } else {
+      node.weight += weight;
+    }
+    total += weight;
+    modified();
+    return node.element;
+  }
+
+  /**
+   * Adds element with weight of 1.
+   *
+   * @param element element to add to list
+   * @return Whether list was modified by this add.
+   */
+  @Override
+  public boolean add(E element) {
+    return add(1.0, element) != null || element == null;
+  }
+
+  /**
+   * Releases storage left over from removed entries, sizing the list and its index to the entries
+   * it still holds.
+   */
+  public void compact() {
+    backingList = new ObservableListWrapper<>(new ArrayList<>(backingList));
+    index = new HashMap<>(index);
+    modified();
+  }
+
+  /**
+   * Finds the element with the given key.
+   *
+   * @param key key of the element to find.
+   * @return Element with key, or null if the list contains no such element.
+   */
+  public E lookup(K key) {
+    Node node = index.get(key);
+    return node == null ? null : node.element;
+  }
+
+  /**
+   * Gets the weight of the element with the given key.
+   *
+   * @param key key of the element to get the weight of.
+   * @return the weight of the element with key, or -1 if the list contains no such element.
+   */
+  public double getKeyWeight(K key) {
+    Node node = index.get(key);
+    return node == null ? -1.0 : node.weight;
+  }
+
+  @Override
+  protected void removed(Node node) {
+    index.remove(keyFunction.apply(node.element));
+  }
+}
@@ -23,11 +23,14 @@ import com.google.common.collect.Lists;
 import com.sun.javafx.collections.ObservableListWrapper;
 import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Optional;
-import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -46,7 +49,8 @@ import lombok.NonNull;
 public class WeightedList<E> extends AbstractList<E> {
 
   protected ObservableListWrapper<Node> backingList;
-  protected Double total = 0.0;
+  protected double total = 0.0;
+  private AliasTable aliasTable;
 
   public WeightedList() {
     backingList = new ObservableListWrapper<>(new ArrayList<>());
@@ -71,13 +75,14 @@ public class WeightedList<E> extends AbstractList<E> {
    * @param element Element to add to list.
    * @return Element added to list.
    */
-  public E add(Double weight, @NonNull E element) {
+  public E add(double weight, @NonNull E element) {
     if (weight <= 0 || element == null) {
       return null;
     }
 
     total += weight;
     backingList.add(new Node(weight, element));
+    modified();
     return element;
   }
 
@@ -91,15 +96,26 @@ public class WeightedList<E> extends AbstractList<E> {
     return backingList.get(index).element;
   }
 
+  /**
+   * @return the sum of the weights of all entries in the list
+   */
+  public double getTotal() {
+    return total;
+  }
+
   /**
    * Gets the weight of a given item in the list
    *
    * @param item item to get the weight for
    * @return the weight of item, if it appears in the list
    */
-  public Double getWeight(E item) {
-    return backingList.stream().filter(n -> n.itemEquals(item)).findFirst().map(Node::getWeight)
-                      .orElse(-1.0);
+  public double getWeight(E item) {
+    for (Node node : backingList) {
+      if (node.itemEquals(item)) {
+        return node.weight;
+      }
+    }
+    return -1.0;
   }
 
   /**
@@ -108,27 +124,46 @@ public class WeightedList<E> extends AbstractList<E> {
    * @param matcher matcher to find the item to get the weight of
    * @return the weight of first item that matches matcher, if it appears in the list
    */
-  public Double getWeight(Predicate<E> matcher) {
-    return backingList.stream().filter(n -> matcher.test(n.element)).findFirst()
-                      .map(Node::getWeight).orElse(-1.0);
+  public double getWeight(Predicate<E> matcher) {
+    for (Node node : backingList) {
+      if (matcher.test(node.element)) {
+        return node.weight;
+      }
+    }
+    return -1.0;
   }
 
   /**
-   * Returns a random entry from the backing list based on element weights
+   * Returns a random entry from the backing list based on element weights. Picks are made in
+   * constant time from an alias table, which is built on the first pick after the list changes.
    *
    * @return randomly weighted entry
    */
   public E random() {
-    Double value = new Random().nextDouble() * total;
-    E last = null;
-    for (Node n : backingList) {
-      value -= n.weight;
-      if (value < 0) {
-        return n.element;
-      }
-      last = n.element;
+    return random(ThreadLocalRandom.current().nextDouble());
+  }
+
+  /**
+   * Returns an entry from the backing list based on element weights, picked by the given uniform
+   * random value instead of an internal source of randomness. Equal values pick equal entries as
+   * long as the list does not change.
+   *
+   * @param uniform random value in [0, 1)
+   * @return randomly weighted entry
+   */
+  public E random(double uniform) {
+    if (backingList.isEmpty()) {
+      return null;
+    }
+    if (backingList.size() == 1) {
+      return backingList.get(0).element;
+    }
+    AliasTable table = aliasTable;
+    if (table == null) {
+      table = new AliasTable(backingList.stream().mapToDouble(Node::getWeight).toArray());
+      aliasTable = table;
     }
-    return last;
+    return backingList.get(table.pick(uniform)).element;
   }
 
   /**
@@ -162,6 +197,41 @@ public class WeightedList<E> extends AbstractList<E> {
     return result;
   }
 
+  /**
+   * Removes every entry lighter than minWeight. The total weight of the list shrinks by the weight
+   * of the removed entries, so the remaining entries are picked in proportion to each other.
+   *
+   * @param minWeight smallest weight an entry must have to stay in the list
+   * @return removed elements
+   */
+  public List<E> removeBelow(double minWeight) {
+    return removeNodes(n -> n.weight < minWeight);
+  }
+
+  /**
+   * Keeps the num heaviest entries and removes the rest. Entries of equal weight are kept in the
+   * order they were added.
+   *
+   * @param num number of entries to keep
+   * @return removed elements
+   */
+  public List<E> retainTop(int num) {
+    if (num >= size()) {
+      return new ArrayList<>();
+    }
+    // Sorting a copy leaves the backing list, and any view of it, alone until the removal.
+    List<Node> sorted = new ArrayList<>(backingList);
+    sorted.sort(Node::compareTo);
+    Set<Node> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+    kept.addAll(sorted.subList(0, Math.max(num, 0)));
+    return removeNodes(n -> !kept.contains(n));
+  }
+
+  @Override
+  public boolean removeIf(Predicate<? super E> filter) {
+    return !removeNodes(n -> filter.test(n.element)).isEmpty();
+  }
+
   @Override
   public void forEach(Consumer<? super E> action) {
     backingList.forEach(n -> action.accept(n.element));
@@ -187,6 +257,43 @@ public class WeightedList<E> extends AbstractList<E> {
     return backingList.stream().map(n -> n.element).collect(Collectors.toList()).stream();
   }
 
+  /**
+   * Must be called by subclasses whenever they add elements or change weights, so that stale random
+   * pick tables are discarded.
+   */
+  protected void modified() {
+    aliasTable = null;
+  }
+
+  /**
+   * Called for every entry removed from the list, so that subclasses can drop it from their own
+   * indexes.
+   *
+   * @param node removed entry
+   */
+  protected void removed(Node node) {
+  }
+
+  private List<E> removeNodes(Predicate<Node> filter) {
+    List<E> removed = new ArrayList<>();
+    List<Node> kept = new ArrayList<>();
+    for (Node node : backingList) {
+      if (filter.test(node)) {
+        removed.add(node.element);
+        removed(node);
+      } else {
+        kept.add(node);
+      }
+    }
+    if (!removed.isEmpty()) {
+      // Replaced in one change, so that observers of the list see a single update.
+      backingList.setAll(kept);
+      total = kept.stream().mapToDouble(Node::getWeight).sum();
+      modified();
+    }
+    return removed;
+  }
+
   private SortedList<Node> getSorted() {
     return backingList.sorted(Node::compareTo);
   }
@@ -194,7 +301,7 @@ public class WeightedList<E> extends AbstractList<E> {
   @AllArgsConstructor
   protected class Node implements Comparable<Node>, Combine<Node> {
 
-    @Getter(AccessLevel.PRIVATE) Double weight;
+    @Getter(AccessLevel.PRIVATE) double weight;
     final E element;
 
     boolean itemEquals(E that) {
@@ -203,7 +310,7 @@ public class WeightedList<E> extends AbstractList<E> {
 
     @Override
     public int compareTo(Node o) {
-      return o.weight.compareTo(weight);
+      return Double.compare(o.weight, weight);
     }
 
     @Override
@@ -211,7 +318,7 @@ public class WeightedList<E> extends AbstractList<E> {
       if (other == null || other.weight <= 0) {
         return false;
       }
-      Double thisWeight = this.weight;
+      double thisWeight = this.weight;
       this.weight += other.weight;
       other.weight += thisWeight;
       return true;
@@ -0,0 +1,228 @@
+/*
+ * Collection utility classes
+ * Copyright (C) 2016 Dane Zeke Liergaard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dzlier.markov;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.dzlier.markov.MarkovChain.Composer;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Sets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Base class for unit tests on the variants of {@link MarkovChain} that lay out its weights
+ * differently: each must hold the weights a MarkovChain of the same items holds.
+ *
+ * @param <C> Type of the chain under test.
+ * @param <N> Type of its nodes.
+ */
+abstract class ChainVariantTestBase<C, N> {
+
+  private final List<C> chains = new ArrayList<>();
+
+  /**
+   * @return New chain under test, of contexts of up to maxDepth links, composed by
+   *     {@link #composer()}.
+   */
+  abstract C newChain(int maxDepth);
+
+  abstract void process(C chain, String item, double weight);
+
+  abstract String generate(C chain, int depth);
+
+  /**
+   * @return Root of the trie of chain that holds the weights from the start of items if inRoot,
+   *     or past it otherwise.
+   */
+  abstract N root(C chain, boolean inRoot);
+
+  /**
+   * @return Child of node for link, which must exist.
+   */
+  abstract N child(C chain, N node, String link, boolean inRoot);
+
+  /**
+   * @return Weight of the child of node for link, or of ending after node if link is null; 0 if
+   *     there is none.
+   */
+  abstract double weight(C chain, N node, String link, boolean inRoot);
+
+  /**
+   * Releases chain once its test ends.
+   */
+  void close(C chain) {
+  }
+
+  /**
+   * @return Composer of the items of chains under test.
+   */
+  Composer<String, String> composer() {
+    return MarkovChain.stringChain(" ").composer;
+  }
+
+  /**
+   * @return New chain under test, closed once the test ends.
+   */
+  C chain(int maxDepth) {
+    C chain = newChain(maxDepth);
+    chains.add(chain);
+    return chain;
+  }
+
+  @After
+  public void closeChains() {
+    chains.forEach(this::close);
+  }
+
+  /**
+   * @return Item of the given links.
+   */
+  String item(String... links) {
+    return composer().join(Arrays.asList(links));
+  }
+
+  /**
+   * @return Sentences of {@link MarkovChainTest#corpus}, composed so that each word is one link.
+   */
+  List<String> corpus(int count, long seed) {
+    return MarkovChainTest.corpus(count, seed).stream()
+                          .map(s -> composer().join(Splitter.on(" ").splitToList(s)))
+                          .collect(Collectors.toList());
+  }
+
+  @Test
+  public void testSameWeightsAsMarkovChain() {
+    List<String> corpus = corpus(500, 137);
+    for (int depth : new int[] {1, 2, 5, Integer.MAX_VALUE}) {
+      MarkovChain<String, String> markov = new MarkovChain<>(composer(), depth);
+      C chain = chain(depth);
+      for (int i = 0; i < corpus.size(); i++) {
+        markov.process(corpus.get(i), 1.0 + i % 3 * 0.75);
+        process(chain, corpus.get(i), 1.0 + i % 3 * 0.75);
+      }
+      markov.process("", 2.0);
+      process(chain, "", 2.0);
+
+      assertSameWeights(markov, chain);
+    }
+  }
+
+  @Test
+  public void testGenerateReproducesCorpus() {
+    List<String> corpus = corpus(300, 139);
+    C chain = chain(Integer.MAX_VALUE);
+    corpus.forEach(item -> process(chain, item, 1.0));
+
+    Set<String> items = Sets.newHashSet(corpus);
+    for (int i = 0; i < 300; i++) {
+      assertTrue(items.contains(generate(chain, Integer.MAX_VALUE)));
+    }
+  }
+
+  @Test
+  public void testEmptyItems() {
+    C chain = chain(3);
+    process(chain, "", 2.0);
+    for (int i = 0; i < 20; i++) {
+      assertEquals("", generate(chain, 3));
+    }
+
+    process(chain, item("a", "b"), 2.0);
+    assertGenerated(chain, 3, "", 0.5, item("a", "b"), 0.5);
+  }
+
+  @Test
+  public void testDepthOne() {
+    MarkovChain<String, String> markov = new MarkovChain<>(composer(), 1);
+    C chain = chain(1);
+    for (String item : new String[] {item("a", "b", "c"), item("c", "b"), item("b")}) {
+      markov.process(item, 1.5);
+      process(chain, item, 1.5);
+    }
+
+    // Past the first link, links and the end are picked whatever the last link was.
+    Map<String, Long> expected = counts(() -> markov.generate(1));
+    Map<String, Long> counts = counts(() -> generate(chain, 1));
+    for (String item : Sets.union(expected.keySet(), counts.keySet())) {
+      assertEquals(expected.getOrDefault(item, 0L) / 20000.0,
+                   counts.getOrDefault(item, 0L) / 20000.0, 0.015);
+    }
+  }
+
+  @Test
+  public void testWeights() {
+    C chain = chain(Integer.MAX_VALUE);
+    process(chain, item("a"), 0.5);
+    process(chain, item("b"), 1.5);
+    process(chain, item("a", "b"), 2.0);
+
+    assertGenerated(chain, Integer.MAX_VALUE, item("a"), 0.125, item("b"), 0.375,
+                    item("a", "b"), 0.5);
+  }
+
+  /**
+   * Asserts that generation with the given seed depth generates each of the items and only them,
+   * each in the share that follows it.
+   */
+  void assertGenerated(C chain, int depth, Object... shares) {
+    Map<String, Long> counts = counts(() -> generate(chain, depth));
+    assertEquals(shares.length / 2, counts.size());
+    for (int i = 0; i < shares.length; i += 2) {
+      assertEquals((double) shares[i + 1], counts.getOrDefault(shares[i], 0L) / 20000.0, 0.015);
+    }
+  }
+
+  /**
+   * @return Number of times each item is generated in 20000 generations.
+   */
+  private static Map<String, Long> counts(Supplier<String> generate) {
+    return IntStream.range(0, 20000).mapToObj(i -> generate.get())
+                    .collect(Collectors.groupingBy(s -> s, Collectors.counting()));
+  }
+
+  /**
+   * Asserts that chain holds the weights of expected, from the start of items and past it.
+   */
+  void assertSameWeights(MarkovChain<String, String> expected, C chain) {
+    assertSameWeights(expected.root, chain, root(chain, true), true);
+    assertSameWeights(expected.mid, chain, root(chain, false), false);
+  }
+
+  private void assertSameWeights(MarkovChain<String, String>.Node expected, C chain, N actual,
+                                 boolean inRoot) {
+    double end = expected.children.getKeyWeight(null);
+    assertEquals(Math.max(0.0, end), weight(chain, actual, null, inRoot), 0.0);
+    for (MarkovChain<String, String>.Node child : expected.children) {
+      if (!child.isEnd) {
+        assertEquals(expected.children.getKeyWeight(child.item),
+                     weight(chain, actual, child.item, inRoot), 0.0);
+        assertSameWeights(child, chain, child(chain, actual, child.item, inRoot), inRoot);
+      }
+    }
+  }
+}
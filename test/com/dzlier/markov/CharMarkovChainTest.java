@@ -0,0 +1,164 @@
+/*
+ * Collection utility classes
+ * Copyright (C) 2016 Dane Zeke Liergaard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dzlier.markov;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.dzlier.markov.MarkovChain.Composer;
+import java.util.stream.Collectors;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link CharMarkovChain}
+ */
+public class CharMarkovChainTest
+    extends ChainVariantTestBase<CharMarkovChain, CharMarkovChain.Node> {
+
+  @Override
+  Composer<String, String> composer() {
+    return new Composer<>(s -> s.codePoints().mapToObj(c -> new String(Character.toChars(c)))
+                                .collect(Collectors.toList()),
+                          l -> String.join("", l));
+  }
+
+  @Override
+  CharMarkovChain newChain(int maxDepth) {
+    return new CharMarkovChain(maxDepth);
+  }
+
+  @Override
+  void process(CharMarkovChain chain, String item, double weight) {
+    chain.process(item, weight);
+  }
+
+  @Override
+  String generate(CharMarkovChain chain, int depth) {
+    return chain.generate(depth);
+  }
+
+  @Override
+  CharMarkovChain.Node root(CharMarkovChain chain, boolean inRoot) {
+    return inRoot ? chain.root : chain.mid;
+  }
+
+  @Override
+  CharMarkovChain.Node child(CharMarkovChain chain, CharMarkovChain.Node node, String link,
+                             boolean inRoot) {
+    return node.get(link);
+  }
+
+  @Override
+  double weight(CharMarkovChain chain, CharMarkovChain.Node node, String link, boolean inRoot) {
+    if (link == null) {
+      return node.endWeight;
+    }
+    for (int i = 0; i < node.size; i++) {
+      if (node.codePoints[i] == link.codePointAt(0)) {
+        return node.weights[i];
+      }
+    }
+    return 0.0;
+  }
+
+  @Override
+  void assertSameWeights(MarkovChain<String, String> expected, CharMarkovChain chain) {
+    assertEquals(expected.nodeCount(), chain.nodeCount());
+    super.assertSameWeights(expected, chain);
+  }
+
+  @Test
+  public void testGenerateIntoBuilder() {
+    CharMarkovChain chars = new CharMarkovChain(2);
+    chars.process("abc");
+
+    StringBuilder builder = new StringBuilder("x");
+    chars.generate(2, builder);
+    chars.generate(2, builder);
+    assertEquals("xabcabc", builder.toString());
+  }
+
+  @Test
+  public void testSurrogatePairs() {
+    CharMarkovChain chars = new CharMarkovChain(2);
+    String smile = new String(Character.toChars(0x1F600));
+    chars.process("a" + smile + "b");
+
+    assertEquals(0x1F600, chars.getMid(smile).codePoint);
+    assertEquals("a" + smile + "b", chars.generate(2));
+  }
+
+  @Test
+  public void testSuffixLinks() {
+    CharMarkovChain chars = new CharMarkovChain(4);
+    corpus(300, 79).forEach(chars::process);
+    assertSuffixLinks(chars, chars.root, "");
+    assertSuffixLinks(chars, chars.mid, "");
+  }
+
+  @Test
+  public void testEmpty() {
+    CharMarkovChain chars = new CharMarkovChain();
+    assertEquals("", chars.generate());
+    assertNull(chars.get("a"));
+  }
+
+  @Test
+  public void testManyChildren() {
+    CharMarkovChain chars = new CharMarkovChain(2);
+    // Consecutive code points, half of them outside the basic plane, each three times as heavy
+    // if even.
+    for (int codePoint = 0xFFFF - 250; codePoint < 0xFFFF + 250; codePoint++) {
+      chars.process("a" + new String(Character.toChars(codePoint)), codePoint % 2 == 0 ? 3.0 : 1.0);
+    }
+    chars.process("a");
+
+    CharMarkovChain.Node node = chars.get("a");
+    assertEquals(500, node.size);
+    for (int codePoint = 0xFFFF - 250; codePoint < 0xFFFF + 250; codePoint++) {
+      assertEquals(codePoint, chars.get("a" + new String(Character.toChars(codePoint))).codePoint);
+    }
+    assertNull(chars.get("ab"));
+
+    int even = 0;
+    int ends = 0;
+    for (int i = 0; i < 20010; i++) {
+      CharMarkovChain.Node picked = node.pick(i / 20010.0);
+      if (picked.codePoint == -1) {
+        ends++;
+      } else if (picked.codePoint % 2 == 0) {
+        even++;
+      }
+    }
+    // The 1001 units of weight are 750 of even code points and 1 of the end.
+    assertEquals(15000, even, 20);
+    assertEquals(20, ends, 1);
+  }
+
+  private static void assertSuffixLinks(CharMarkovChain chars, CharMarkovChain.Node node,
+                                        String context) {
+    if (!context.isEmpty()) {
+      assertSame(chars.getMid(context.substring(context.offsetByCodePoints(0, 1))), node.suffix);
+    }
+    for (int i = 0; i < node.size; i++) {
+      assertSuffixLinks(chars, node.children[i],
+                        context + new String(Character.toChars(node.codePoints[i])));
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Collection utility classes
+ * Copyright (C) 2016 Dane Zeke Liergaard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dzlier.markov;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import com.dzlier.markov.MarkovChain.Composer;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link ConcurrentMarkovChain}.
+ */
+public class ConcurrentMarkovChainTest
+    extends ChainVariantTestBase<ConcurrentMarkovChain<String, String>,
+                                 ConcurrentMarkovChain<String, String>.Node> {
+
+  private static final Composer<String, String> WORDS =
+      new Composer<>(Splitter.on(" ")::splitToList, Joiner.on(" ")::join);
+
+  @Override
+  Composer<String, String> composer() {
+    return WORDS;
+  }
+
+  @Override
+  ConcurrentMarkovChain<String, String> newChain(int maxDepth) {
+    return new ConcurrentMarkovChain<>(WORDS, maxDepth);
+  }
+
+  @Override
+  void process(ConcurrentMarkovChain<String, String> chain, String item, double weight) {
+    chain.process(item, weight);
+  }
+
+  @Override
+  String generate(ConcurrentMarkovChain<String, String> chain, int depth) {
+    return chain.generate(depth);
+  }
+
+  @Override
+  ConcurrentMarkovChain<String, String>.Node root(ConcurrentMarkovChain<String, String> chain,
+                                                  boolean inRoot) {
+    return inRoot ? chain.root : chain.mid;
+  }
+
+  @Override
+  ConcurrentMarkovChain<String, String>.Node child(
+      ConcurrentMarkovChain<String, String> chain, ConcurrentMarkovChain<String, String>.Node node,
+      String link, boolean inRoot) {
+    return node.children.get(link);
+  }
+
+  @Override
+  double weight(ConcurrentMarkovChain<String, String> chain,
+                ConcurrentMarkovChain<String, String>.Node node, String link, boolean inRoot) {
+    if (link == null) {
+      return node.endWeight.sum();
+    }
+    ConcurrentMarkovChain<String, String>.Node child = node.children.get(link);
+    return child == null ? 0.0 : child.weight.sum();
+  }
+
+  @Test
+  public void testSingleChain() {
+    ConcurrentMarkovChain<String, String> markov = new ConcurrentMarkovChain<>(WORDS);
+    markov.process("hello world and mom and dad");
+
+    assertEquals("hello world and mom and dad", markov.generate());
+    assertEquals("hello world and mom and dad", markov.generate(3));
+  }
+
+  @Test
+  public void testTwoChains() {
+    ConcurrentMarkovChain<String, String> markov = new ConcurrentMarkovChain<>(WORDS, 2);
+    markov.process("hello world");
+    markov.process("hello mom", 3.0);
+
+    Set<String> generated = Sets.newHashSet();
+    for (int i = 0; i < 200; i++) {
+      generated.add(markov.generate());
+    }
+    assertEquals(Sets.newHashSet("hello world", "hello mom"), generated);
+  }
+
+  @Test
+  public void testGenerateDistribution() {
+    ConcurrentMarkovChain<String, String> markov = new ConcurrentMarkovChain<>(WORDS, 3);
+    markov.process("a b c");
+    markov.process("x b d", 3.0);
+    assertGenerated(markov, ImmutableMap.of("a b c", 1.0 / 16, "a b d", 3.0 / 16,
+                                            "x b c", 3.0 / 16, "x b d", 9.0 / 16));
+
+    // Picks see the weights processed after the last picks.
+    markov.process("a b c", 8.0);
+    assertGenerated(markov, ImmutableMap.of("a b c", 3.0 / 4 * 3.0 / 4, "a b d", 3.0 / 4 / 4,
+                                            "x b c", 1.0 / 4 * 3.0 / 4, "x b d", 1.0 / 4 / 4));
+  }
+
+  /**
+   * Asserts that generation with seed depth 2 generates each item in its expected share.
+   */
+  private static void assertGenerated(ConcurrentMarkovChain<String, String> markov,
+                                      Map<String, Double> expected) {
+    Map<String, Long> counts = IntStream.range(0, 20000).mapToObj(i -> markov.generate(2))
+                                        .collect(Collectors.groupingBy(s -> s,
+                                                                       Collectors.counting()));
+    assertEquals(expected.keySet(), counts.keySet());
+    for (Map.Entry<String, Double> share : expected.entrySet()) {
+      assertEquals(share.getValue(), counts.get(share.getKey()) / 20000.0, 0.015);
+    }
+  }
+
+  @Test
+  public void testConcurrentProcessAndGenerate() throws Exception {
+    List<String> corpus = MarkovChainTest.corpus(4000, 3);
+    MarkovChain<String, String> sequential = new MarkovChain<>(WORDS, 3);
+    corpus.forEach(sequential::process);
+
+    ConcurrentMarkovChain<String, String> markov = new ConcurrentMarkovChain<>(WORDS, 3);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      List<String> shard = corpus.subList(t * 500, (t + 1) * 500);
+      futures.add(executor.submit(() -> {
+        for (String item : shard) {
+          markov.process(item);
+          assertNotNull(markov.generate(2));
+        }
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+
+    assertSameWeights(sequential, markov);
+  }
+}
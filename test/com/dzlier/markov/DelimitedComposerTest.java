@@ -0,0 +1,74 @@
+/*
+ * Collection utility classes
+ * Copyright (C) 2016 Dane Zeke Liergaard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dzlier.markov;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link DelimitedComposer}
+ */
+public class DelimitedComposerTest {
+
+  private static final String[] ITEMS = {"", " ", "a", "a b", " a", "a ", "a  b", "ab  cd e "};
+
+  @Test
+  public void testSeparateLikeSplitter() {
+    for (String delimiter : new String[] {" ", "  ", "ab"}) {
+      DelimitedComposer composer = new DelimitedComposer(delimiter);
+      for (String item : ITEMS) {
+        List<String> links = new ArrayList<>();
+        composer.separate(item, links::add);
+        assertEquals(Splitter.on(delimiter).splitToList(item), links);
+      }
+    }
+  }
+
+  @Test
+  public void testAppenderLikeJoiner() {
+    DelimitedComposer composer = new DelimitedComposer(" ");
+    for (String item : ITEMS) {
+      List<String> links = Splitter.on(" ").splitToList(item);
+      StreamingComposer.Appender<String, String> appender = composer.appender();
+      links.forEach(appender::append);
+      assertEquals(Joiner.on(" ").join(links), appender.finish());
+    }
+    assertEquals("", composer.appender().finish());
+  }
+
+  @Test
+  public void testAppenderAfterUnfinishedItem() {
+    DelimitedComposer composer = new DelimitedComposer(" ");
+    // As left behind by a generation that threw before finishing its item.
+    composer.appender().append("partial");
+    StreamingComposer.Appender<String, String> appender = composer.appender();
+    appender.append("hello");
+    appender.append("world");
+    assertEquals("hello world", appender.finish());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testEmptyDelimiter() {
+    new DelimitedComposer("");
+  }
+}
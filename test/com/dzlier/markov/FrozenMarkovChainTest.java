@@ -0,0 +1,148 @@
+/*
+ * Collection utility classes
+ * Copyright (C) 2016 Dane Zeke Liergaard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dzlier.markov;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.Sets;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link FrozenMarkovChain}.
+ */
+public class FrozenMarkovChainTest {
+
+  @Test
+  public void testSingleChain() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ");
+    markov.process("hello world and mom and dad");
+    FrozenMarkovChain<String, String> frozen = markov.freeze();
+
+    assertEquals("hello world and mom and dad", frozen.generate());
+    assertEquals("hello world and mom and dad", frozen.generate(3));
+    String generated = frozen.generate(2);
+    assertTrue(generated.startsWith("hello world and "));
+    assertTrue(generated.endsWith(" and dad"));
+  }
+
+  @Test
+  public void testTwoChains() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ");
+    markov.process("hello world");
+    markov.process("hello mom", 3.0);
+    FrozenMarkovChain<String, String> frozen = markov.freeze();
+
+    Set<String> generated = Sets.newHashSet();
+    for (int i = 0; i < 200; i++) {
+      generated.add(frozen.generate());
+    }
+    assertEquals(Sets.newHashSet("hello world", "hello mom"), generated);
+  }
+
+  @Test
+  public void testUnaffectedByLaterProcessing() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ");
+    markov.process("hello world");
+    FrozenMarkovChain<String, String> frozen = markov.freeze();
+    int nodes = frozen.nodeCount();
+    markov.process("goodbye world");
+
+    assertEquals(nodes, frozen.nodeCount());
+    for (int i = 0; i < 20; i++) {
+      assertEquals("hello world", frozen.generate());
+    }
+  }
+
+  @Test
+  public void testEmptyChain() {
+    FrozenMarkovChain<String, String> frozen = MarkovChain.stringChain(" ").freeze();
+
+    assertEquals("", frozen.generate());
+  }
+
+  @Test
+  public void testSaveAndMap() throws IOException {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ");
+    markov.process("hello world and mom and dad");
+    markov.process("goodbye mom");
+    Path path = Files.createTempFile("markov", ".chain");
+    try {
+      markov.save(path, TokenCodec.STRINGS);
+      FrozenMarkovChain<String, String> mapped =
+          FrozenMarkovChain.map(path, markov.composer, TokenCodec.STRINGS);
+
+      assertEquals(markov.nodeCount(), mapped.nodeCount());
+      Set<String> generated = Sets.newHashSet();
+      for (int i = 0; i < 200; i++) {
+        generated.add(mapped.generate(3));
+      }
+      assertEquals(Sets.newHashSet("hello world and mom and dad", "goodbye mom"), generated);
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Test
+  public void testBacksOffAfterEviction() throws IOException {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ", 3);
+    markov.process("x b c d");
+    for (int i = 0; i < 3; i++) {
+      markov.process("y c d");
+    }
+    // Evicts the stale "x b c" and "b c d", leaving "b c" with nothing to follow it.
+    markov.setBudget(13, MarkovChain.Eviction.LEAST_RECENT);
+    Path path = Files.createTempFile("markov", ".chain");
+    try {
+      markov.save(path, TokenCodec.STRINGS);
+      FrozenMarkovChain<String, String> mapped =
+          FrozenMarkovChain.map(path, markov.composer, TokenCodec.STRINGS);
+      FrozenMarkovChain<String, String> frozen = markov.freeze();
+
+      Set<String> live = Sets.newHashSet();
+      Set<String> fromFrozen = Sets.newHashSet();
+      Set<String> fromMapped = Sets.newHashSet();
+      for (int i = 0; i < 200; i++) {
+        live.add(markov.generate());
+        fromFrozen.add(frozen.generate());
+        fromMapped.add(mapped.generate());
+      }
+      assertEquals(Sets.newHashSet("x b c d", "y c d"), live);
+      assertEquals(live, fromFrozen);
+      assertEquals(live, fromMapped);
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testMapRejectsOtherFiles() throws IOException {
+    Path path = Files.createTempFile("markov", ".chain");
+    try {
+      Files.write(path, "hello world and mom and dad".getBytes(StandardCharsets.UTF_8));
+      FrozenMarkovChain.map(path, MarkovChain.stringChain(" ").composer, TokenCodec.STRINGS);
+    } finally {
+      Files.delete(path);
+    }
+  }
+}
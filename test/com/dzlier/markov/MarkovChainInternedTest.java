@@ -0,0 +1,158 @@
+/*
+ * Collection utility classes
+ * Copyright (C) 2016 Dane Zeke Liergaard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dzlier.markov;
+
+import static org.junit.Assert.assertEquals;
+
+import com.dzlier.markov.MarkovChain.Composer;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Sets;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link MarkovChain} on Strings interned into a {@link Vocabulary}.
+ */
+public class MarkovChainInternedTest extends MarkovChainTestBase<String, Integer> {
+  public static final Composer<String, String> WORDS =
+      new Composer<>(Splitter.on(" ")::splitToList, Joiner.on(" ")::join);
+
+  @Test
+  public void testSingleLink() {
+    markov = MarkovChain.internedChain(WORDS);
+    composer = markov.composer;
+    testSingleLink(composer.separate("hello").get(0));
+  }
+
+  @Test
+  public void testTwoLink() {
+    markov = MarkovChain.internedChain(WORDS);
+    composer = markov.composer;
+    testTwoLink(composer.separate("hello world"));
+  }
+
+  @Test
+  public void testTwoLinkDepthOne() {
+    markov = MarkovChain.internedChain(WORDS, 1);
+    composer = markov.composer;
+    testTwoLinkDepthOne(composer.separate("hello world"));
+  }
+
+  @Test
+  public void testThreeLinkDepthTwo() {
+    markov = MarkovChain.internedChain(WORDS, 2);
+    composer = markov.composer;
+    testThreeLinkDepthTwo(composer.separate("hello again world"));
+  }
+
+  @Test
+  public void testSixLink() {
+    markov = MarkovChain.internedChain(WORDS);
+    composer = markov.composer;
+    testSixLink(composer.separate("hello world and mom and dad"));
+  }
+
+  @Test
+  public void testThreeChainsDepthTwo() {
+    markov = MarkovChain.internedChain(WORDS, 2);
+    composer = markov.composer;
+    List<Integer> chain1 = composer.separate("hello world and dad");
+    List<Integer> chain2 = composer.separate("hello mom and dad");
+    List<Integer> chain3 = composer.separate("goodbye dad and world");
+    testThreeChainsDepthTwo(chain1, chain2, chain3);
+  }
+
+  @Test
+  public void testIdsJoinBackToTokens() {
+    Vocabulary<String> vocabulary = new Vocabulary<>();
+    Composer<String, Integer> ids = WORDS.interned(vocabulary);
+
+    assertEquals(3, ids.separate("hello world hello again").stream().distinct().count());
+    assertEquals(3, vocabulary.size());
+    assertEquals(0, vocabulary.id("hello"));
+    assertEquals(-1, vocabulary.id("goodbye"));
+    assertEquals("again hello", ids.join(ids.separate("again hello")));
+  }
+
+  @Test
+  public void testMergeSharedComposer() {
+    markov = MarkovChain.internedChain(WORDS);
+    markov.process("hello world");
+    MarkovChain<String, Integer> other = new MarkovChain<>(markov.composer);
+    other.process("hello mom");
+    markov.merge(other);
+
+    assertEquals(Sets.newHashSet("hello world", "hello mom"),
+                 Sets.newHashSet(markov.generateAll(100)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMergeOtherVocabulary() {
+    markov = MarkovChain.internedChain(WORDS);
+    markov.process("hello world");
+    MarkovChain<String, Integer> other = MarkovChain.internedChain(WORDS);
+    other.process("goodbye mom");
+    // Id 0 is "hello" in this chain's vocabulary, and "goodbye" in the other's.
+    markov.merge(other);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testSaveWithoutVocabulary() throws IOException {
+    markov = MarkovChain.internedChain(WORDS);
+    markov.process("hello world");
+    // Ids could not be joined back to tokens without the vocabulary.
+    markov.save(Paths.get("unwritten.chain"), TokenCodec.INTEGERS);
+  }
+
+  @Test
+  public void testSaveWithVocabulary() throws IOException {
+    Vocabulary<String> vocabulary = new Vocabulary<>();
+    vocabulary.intern("unused");
+    markov = MarkovChain.internedChain(WORDS, vocabulary, 3);
+    markov.process("hello world and mom and dad");
+    markov.process("goodbye mom");
+    Path path = Files.createTempFile("markov", ".chain");
+    try {
+      markov.save(path, vocabulary, TokenCodec.STRINGS);
+      FrozenMarkovChain<String, String> mapped =
+          FrozenMarkovChain.map(path, WORDS, TokenCodec.STRINGS);
+
+      assertEquals(markov.nodeCount(), mapped.nodeCount());
+      Set<String> generated = Sets.newHashSet();
+      for (int i = 0; i < 200; i++) {
+        generated.add(mapped.generate(3));
+      }
+      assertEquals(Sets.newHashSet("hello world and mom and dad", "goodbye mom"), generated);
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSaveWithOtherVocabulary() throws IOException {
+    markov = MarkovChain.internedChain(WORDS);
+    markov.process("hello world");
+    markov.save(Paths.get("unwritten.chain"), new Vocabulary<>(), TokenCodec.STRINGS);
+  }
+}
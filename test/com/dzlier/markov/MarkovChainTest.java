@@ -0,0 +1,908 @@
+/*
+ * Collection utility classes
+ * Copyright (C) 2016 Dane Zeke Liergaard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dzlier.markov;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.dzlier.markov.MarkovChain.Composer;
+import com.dzlier.weight.CompactWeightedList;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Test;
+
+/**
+ * Unit tests for chain-level operations of {@link MarkovChain}.
+ */
+public class MarkovChainTest {
+
+  private static final String[] WORDS = {"hello", "world", "and", "mom", "dad", "goodbye"};
+
+  @Test
+  public void testProcessAllParallelStream() {
+    List<String> corpus = corpus(2000, 7);
+    MarkovChain<String, String> sequential = MarkovChain.stringChain(" ", 3);
+    corpus.forEach(sequential::process);
+    MarkovChain<String, String> parallel = MarkovChain.stringChain(" ", 3);
+    parallel.processAll(corpus.parallelStream());
+
+    assertSameWeights(sequential, parallel);
+  }
+
+  @Test
+  public void testProcessAllIterable() {
+    List<String> corpus = corpus(2000, 11);
+    MarkovChain<String, String> sequential = MarkovChain.stringChain(" ");
+    corpus.forEach(sequential::process);
+    MarkovChain<String, String> parallel = MarkovChain.stringChain(" ");
+    parallel.process("hello world");
+    parallel.processAll(corpus, 4);
+    sequential.process("hello world");
+
+    assertSameWeights(sequential, parallel);
+  }
+
+  @Test
+  public void testMerge() {
+    List<String> corpus = corpus(1000, 5);
+    MarkovChain<String, String> expected = MarkovChain.stringChain(" ", 3);
+    corpus.forEach(expected::process);
+    MarkovChain<String, String> first = MarkovChain.stringChain(" ", 3);
+    corpus.subList(0, 600).forEach(first::process);
+    MarkovChain<String, String> second = MarkovChain.stringChain(" ", 3);
+    corpus.subList(600, 1000).forEach(second::process);
+    int secondNodes = second.nodeCount();
+
+    first.merge(second);
+
+    assertSameWeights(expected, first);
+    assertEquals(expected.nodeCount(), first.nodeCount());
+    assertEquals(secondNodes, second.nodeCount());
+  }
+
+  @Test
+  public void testMergeCollection() {
+    List<String> corpus = corpus(900, 9);
+    MarkovChain<String, String> expected = MarkovChain.stringChain(" ");
+    corpus.forEach(expected::process);
+    List<MarkovChain<String, String>> chains = new ArrayList<>();
+    int[] bounds = {0, 100, 300, 900};
+    for (int i = 0; i < 3; i++) {
+      MarkovChain<String, String> chain = MarkovChain.stringChain(" ");
+      corpus.subList(bounds[i], bounds[i + 1]).forEach(chain::process);
+      chains.add(chain);
+    }
+
+    MarkovChain<String, String> merged = MarkovChain.merge(chains);
+
+    assertSame(chains.get(2), merged);
+    assertSameWeights(expected, merged);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMergeDifferentDepths() {
+    MarkovChain.stringChain(" ", 2).merge(MarkovChain.stringChain(" ", 3));
+  }
+
+  @Test
+  public void testIngestPath() throws IOException {
+    List<String> corpus = corpus(3000, 13);
+    MarkovChain<String, String> expected = MarkovChain.stringChain(" ", 4);
+    corpus.forEach(expected::process);
+    Path path = Files.createTempFile("corpus", ".txt");
+    try {
+      Files.write(path, Joiner.on("\r\n").join(corpus).getBytes(StandardCharsets.UTF_8));
+      MarkovChain<String, String> ingested = MarkovChain.stringChain(" ", 4);
+      ingested.ingest(path, Function.identity());
+
+      assertSameWeights(expected, ingested);
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Test
+  public void testIngestCrlfBlankLines() throws IOException {
+    MarkovChain<String, String> expected = MarkovChain.stringChain(" ");
+    expected.process("hello world");
+    expected.process("hello mom");
+    byte[] bytes = "\r\nhello world\r\n\r\n\r\nhello mom\r\n\r".getBytes(StandardCharsets.UTF_8);
+    MarkovChain<String, String> ingested = MarkovChain.stringChain(" ");
+    ingested.ingest(Channels.newChannel(new ByteArrayInputStream(bytes)), Function.identity(),
+                    "\n");
+
+    assertSameWeights(expected, ingested);
+    assertEquals(Sets.newHashSet("hello world", "hello mom"),
+                 Sets.newHashSet(ingested.generateAll(100)));
+  }
+
+  @Test
+  public void testIngestGzipChannel() throws IOException {
+    List<String> corpus = corpus(3000, 17);
+    MarkovChain<String, String> expected = MarkovChain.stringChain(" ");
+    corpus.forEach(expected::process);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+      gzip.write(Joiner.on(" | ").join(corpus).getBytes(StandardCharsets.UTF_8));
+    }
+    MarkovChain<String, String> ingested = MarkovChain.stringChain(" ");
+    ingested.ingest(Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray())),
+                    Function.identity(), " | ");
+
+    assertSameWeights(expected, ingested);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testIngestParserFailure() throws IOException {
+    byte[] bytes = Joiner.on("\n").join(corpus(10000, 19)).getBytes(StandardCharsets.UTF_8);
+    MarkovChain.stringChain(" ").ingest(Channels.newChannel(new ByteArrayInputStream(bytes)),
+                                        record -> {
+                                          throw new IllegalStateException(record);
+                                        }, "\n");
+  }
+
+  @Test
+  public void testGenerateAll() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ");
+    markov.process("hello world");
+    markov.process("hello mom");
+
+    List<String> generated = markov.generateAll(100);
+    assertEquals(100, generated.size());
+    assertEquals(Sets.newHashSet("hello world", "hello mom"), Sets.newHashSet(generated));
+  }
+
+  @Test
+  public void testGenerateStreamIsReproducible() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ", 2);
+    corpus(500, 23).forEach(markov::process);
+
+    List<String> first = markov.generateStream(42).limit(200).collect(Collectors.toList());
+    List<String> second = markov.generateStream(42, 2, 200).collect(Collectors.toList());
+    List<String> parallel = markov.generateStream(42, 2, 200).parallel()
+                                  .collect(Collectors.toList());
+    List<String> other = markov.generateStream(43, 2, 200).collect(Collectors.toList());
+
+    assertEquals(first, second);
+    assertEquals(first, parallel);
+    assertNotEquals(first, other);
+  }
+
+  @Test
+  public void testSuffixLinks() {
+    for (int depth : new int[] {1, 3, Integer.MAX_VALUE}) {
+      MarkovChain<String, String> markov = MarkovChain.stringChain(" ", depth);
+      corpus(300, 31).forEach(markov::process);
+      assertSuffixLinks(markov);
+
+      MarkovChain<String, String> other = MarkovChain.stringChain(" ", depth);
+      corpus(300, 37).forEach(other::process);
+      other.process("goodbye goodbye goodbye goodbye goodbye goodbye goodbye goodbye goodbye");
+      markov.merge(other);
+      assertSuffixLinks(markov);
+    }
+  }
+
+  @Test
+  public void testPrune() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ", 3);
+    corpus(500, 41).forEach(markov::process);
+    int before = markov.nodeCount();
+    markov.prune(3.0);
+
+    List<MarkovChain<String, String>.Node> nodes = nodes(markov);
+    assertTrue(nodes.size() < before);
+    assertEquals(nodes.size(), markov.nodeCount());
+    for (MarkovChain<String, String>.Node node : nodes) {
+      // Besides heavier ones, a context may keep the first transition of its way to an end.
+      long lighter = node.children.stream()
+                                  .filter(child -> node.children.getKeyWeight(child.item) < 3.0)
+                                  .count();
+      assertTrue(lighter == 0 || lighter == 1 && node.children.size() > 1);
+    }
+    // Suffixes of a context are at least as heavy as the context, so none of them are pruned.
+    assertSuffixLinks(markov);
+    assertEquals(100, markov.generateAll(100).size());
+  }
+
+  @Test
+  public void testRetainTop() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ", 3);
+    corpus(500, 43).forEach(markov::process);
+    markov.retainTop(2);
+
+    List<MarkovChain<String, String>.Node> nodes = nodes(markov);
+    assertEquals(nodes.size(), markov.nodeCount());
+    for (MarkovChain<String, String>.Node node : nodes) {
+      // The first transition of the shortest way to an end may be kept besides the top two.
+      assertTrue(node.children.size() <= 3);
+      assertNotNull(node == markov.root || node == markov.mid ? markov.mid : node.suffix);
+    }
+    assertEquals(500, markov.generateStream(47, 3, 500).count());
+  }
+
+  @Test
+  public void testRetainTopKeepsEnd() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ", 2);
+    markov.process("a b a b a b a b a b");
+    // "b" is followed by "a" four times and by the end once.
+    markov.retainTop(1);
+
+    for (String generated : markov.generateAll(200)) {
+      assertTrue(generated, generated.matches("a b( a)?( b a)*( b)?"));
+    }
+  }
+
+  @Test
+  public void testPruneKeepsWayToEnd() {
+    for (Consumer<MarkovChain<String, String>> pruning :
+        Arrays.<Consumer<MarkovChain<String, String>>>asList(m -> m.retainTop(1),
+                                                             m -> m.prune(2.0))) {
+      MarkovChain<String, String> markov = MarkovChain.stringChain(" ", 2);
+      markov.process("a b a b a b z");
+      // No context but the one of "z" ends, and "b" is followed by "a" more often than by "z".
+      pruning.accept(markov);
+
+      // Generation would never end if "b" kept only its transition to "a".
+      for (int depth = 1; depth <= 2; depth++) {
+        for (int i = 0; i < 200; i++) {
+          assertNotNull(markov.generate(depth));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testCompact() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ", 3);
+    MarkovChain<String, String> expected = MarkovChain.stringChain(" ", 3);
+    corpus(500, 53).forEach(markov::process);
+    corpus(500, 53).forEach(expected::process);
+    markov.prune(2.0);
+    expected.prune(2.0);
+    markov.compact();
+
+    assertSameWeights(expected, markov);
+    assertEquals(expected.generateStream(59, 3, 100).collect(Collectors.toList()),
+                 markov.generateStream(59, 3, 100).collect(Collectors.toList()));
+  }
+
+  @Test
+  public void testCompactCopiesOnlyResizedContexts() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ", 3);
+    corpus(500, 53).forEach(markov::process);
+    MarkovChain<String, String>.Snapshot snapshot = markov.snapshot();
+    Map<MarkovChain<String, String>.Node, Object> before = new IdentityHashMap<>();
+    for (MarkovChain<String, String>.Node node : nodes(markov)) {
+      before.put(node, node.children);
+    }
+    markov.compact();
+
+    int copied = 0;
+    for (MarkovChain<String, String>.Node node : nodes(markov)) {
+      assertTrue(node.children.isCompact());
+      assertSame(before.get(node), node.children(snapshot));
+      if (node.children != before.get(node)) {
+        copied++;
+      }
+    }
+    assertTrue(copied > 0);
+    assertTrue(copied < before.size() / 2);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRetainTopNothing() {
+    MarkovChain.stringChain(" ").retainTop(0);
+  }
+
+  @Test
+  public void testBudgetLeastWeight() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ", 4);
+    markov.setBudget(300, MarkovChain.Eviction.LEAST_WEIGHT);
+    for (String sentence : corpus(2000, 61)) {
+      markov.process(sentence);
+      markov.process("hello world and mom");
+      assertTrue(markov.nodeCount() <= 300);
+    }
+
+    assertEquals(nodes(markov).size(), markov.nodeCount());
+    assertNotNull(markov.get("hello world and mom"));
+    assertNotNull(markov.getMid("world and mom"));
+    assertEquals(100, markov.generateAll(100).size());
+  }
+
+  @Test
+  public void testBudgetLeastRecent() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ", 4);
+    corpus(2000, 67).forEach(markov::process);
+    markov.setBudget(200, MarkovChain.Eviction.LEAST_RECENT);
+    assertTrue(markov.nodeCount() <= 200);
+
+    markov.process("goodbye dad goodbye mom");
+    assertTrue(markov.nodeCount() <= 200);
+    assertEquals(nodes(markov).size(), markov.nodeCount());
+    assertNotNull(markov.get("goodbye dad goodbye mom"));
+    assertNotNull(markov.getMid("dad goodbye mom"));
+    assertEquals(500, markov.generateStream(71, 4, 500).count());
+  }
+
+  @Test
+  public void testBudgetBelowSingleLinks() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ", 2);
+    for (int i = 0; i < 100; i++) {
+      markov.process("w" + i);
+    }
+    markov.setBudget(50, MarkovChain.Eviction.LEAST_WEIGHT);
+    assertEquals(102, markov.nodeCount());
+
+    // Single links alone take more than the budget, so contexts are only evicted again once the
+    // chain has grown a tenth.
+    markov.process("hello world");
+    assertNotNull(markov.get("hello world"));
+    for (int i = 100; i < 120; i++) {
+      markov.process("w" + i);
+    }
+    assertNull(markov.get("hello world"));
+    assertNotNull(markov.get("hello"));
+    assertEquals(nodes(markov).size(), markov.nodeCount());
+  }
+
+  @Test
+  public void testMemoryBudget() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ", 4);
+    markov.setMemoryBudget(300 * 192, MarkovChain.Eviction.LEAST_WEIGHT);
+    corpus(1000, 79).forEach(markov::process);
+
+    assertTrue(markov.nodeCount() <= 300);
+    assertEquals(nodes(markov).size(), markov.nodeCount());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMemoryBudgetTooSmall() {
+    MarkovChain.stringChain(" ").setMemoryBudget(100, MarkovChain.Eviction.LEAST_WEIGHT);
+  }
+
+  @Test
+  public void testBudgetMerge() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ", 3);
+    markov.setBudget(100, MarkovChain.Eviction.LEAST_WEIGHT);
+    MarkovChain<String, String> other = MarkovChain.stringChain(" ", 3);
+    corpus(1000, 73).forEach(other::process);
+    markov.merge(other);
+
+    assertTrue(markov.nodeCount() <= 100);
+    assertEquals(nodes(markov).size(), markov.nodeCount());
+  }
+
+  @Test
+  public void testProcessAfterFailedSeparate() {
+    MarkovChain<String, String> markov = new MarkovChain<>(failingComposer());
+    try {
+      markov.process("hello world !");
+    } catch (IllegalArgumentException expected) {
+      // Links separated before the failure must not reach the next item.
+    }
+    markov.process("goodbye");
+
+    assertEquals(Sets.newHashSet("goodbye"), Sets.newHashSet(markov.generateAll(20)));
+  }
+
+  @Test
+  public void testStreamingComposer() {
+    StreamingComposer<String, Character> chars = new StreamingComposer<String, Character>() {
+      private final StringBuilder builder = new StringBuilder();
+
+      @Override
+      public void separate(String item, Consumer<? super Character> sink) {
+        for (int i = 0; i < item.length(); i++) {
+          sink.accept(item.charAt(i));
+        }
+      }
+
+      @Override
+      public Appender<String, Character> appender() {
+        return new Appender<String, Character>() {
+          @Override
+          public void append(Character link) {
+            builder.append(link);
+          }
+
+          @Override
+          public String finish() {
+            String joined = builder.toString();
+            builder.setLength(0);
+            return joined;
+          }
+        };
+      }
+    };
+    MarkovChain<String, Character> markov = new MarkovChain<>(chars, Integer.MAX_VALUE);
+    MarkovChain<String, Character> expected = new MarkovChain<>(
+        s -> s.chars().mapToObj(c -> (char) c).collect(Collectors.toList()),
+        l -> l.stream().map(String::valueOf).collect(Collectors.joining()));
+    corpus(200, 83).forEach(markov::process);
+    corpus(200, 83).forEach(expected::process);
+
+    assertSameWeights(expected, markov);
+    assertTrue(Sets.newHashSet(corpus(200, 83)).containsAll(markov.generateAll(300)));
+    assertEquals(Lists.newArrayList('a', 'b'), markov.composer.separate("ab"));
+    assertEquals("ab", markov.composer.join(Lists.newArrayList('a', 'b')));
+  }
+
+  @Test
+  public void testGenerateTopK() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ");
+    markov.process("hello world", 3.0);
+    markov.process("hello mom");
+    markov.process("goodbye");
+
+    List<Scored<String>> top = markov.generateTopK(5, 10);
+    assertEquals(3, top.size());
+    assertEquals("hello world", top.get(0).getItem());
+    assertEquals(Sets.newHashSet("hello mom", "goodbye"),
+                 Sets.newHashSet(top.get(1).getItem(), top.get(2).getItem()));
+    assertEquals(0.6, top.get(0).getProbability(), 1e-9);
+    assertEquals(0.2, top.get(1).getProbability(), 1e-9);
+    assertEquals(0.2, top.get(2).getProbability(), 1e-9);
+    assertEquals(1, markov.generateTopK(1, 1).size());
+  }
+
+  @Test
+  public void testGenerateTopKMatchesSampling() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ", 2);
+    corpus(300, 89).forEach(markov::process);
+
+    List<Scored<String>> top = markov.generateTopK(3, 50);
+    assertEquals(3, top.size());
+    assertTrue(top.get(0).getLogProbability() >= top.get(1).getLogProbability());
+    assertTrue(top.get(1).getLogProbability() >= top.get(2).getLogProbability());
+    List<String> generated = markov.generateStream(97, 2, 100000).collect(Collectors.toList());
+    for (Scored<String> scored : top) {
+      double frequency = generated.stream().filter(scored.getItem()::equals).count() / 100000.0;
+      assertEquals(scored.getProbability(), frequency, 0.005);
+    }
+  }
+
+  @Test
+  public void testGenerateTopKEmpty() {
+    assertTrue(MarkovChain.stringChain(" ").generateTopK(3, 3).isEmpty());
+  }
+
+  @Test
+  public void testGenerateTopKMaxLength() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ", 2);
+    markov.process("a b a b a b");
+
+    assertEquals(Lists.newArrayList("a b", "a b a b"),
+                 markov.generateTopK(5, 5, 5).stream().map(Scored::getItem)
+                       .collect(Collectors.toList()));
+    // Items longer than the one processed are not looked for.
+    assertEquals(3, markov.generateTopK(5, 5).size());
+  }
+
+  @Test
+  public void testGenerateTopKWithoutEnd() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ", 2);
+    markov.process("a b a b");
+    // Leaves "a" and "b" always following each other, so no item ever ends.
+    for (MarkovChain<String, String>.Node node : nodes(markov)) {
+      node.children.removeIf(child -> child.isEnd);
+    }
+
+    assertTrue(markov.generateTopK(3, 4).isEmpty());
+  }
+
+  @Test
+  public void testLogProbabilityMatchesTopK() {
+    for (int depth : new int[] {1, 2, Integer.MAX_VALUE}) {
+      MarkovChain<String, String> markov = MarkovChain.stringChain(" ", depth);
+      corpus(300, 101).forEach(markov::process);
+      markov.retainTop(3);
+
+      for (Scored<String> scored : markov.generateTopK(20, 100)) {
+        assertEquals(scored.getLogProbability(),
+                     markov.logProbability(scored.getItem(), depth), 1e-9);
+      }
+    }
+  }
+
+  @Test
+  public void testLogProbabilityUnseen() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ");
+    markov.process("hello world", 3.0);
+    markov.process("hello mom");
+
+    assertEquals(Math.log(0.75), markov.logProbability("hello world", 2), 1e-9);
+    assertEquals(Double.NEGATIVE_INFINITY, markov.logProbability("hello dad", 2), 0.0);
+    assertEquals(Double.NEGATIVE_INFINITY, markov.logProbability("hello", 2), 0.0);
+    markov.setUnseenLogProbability(-10.0);
+    assertEquals(-10.0, markov.logProbability("hello", 2), 1e-9);
+    // Only links after the first of each item are in mid, which ends half of its picks.
+    assertEquals(-20.0 + Math.log(0.5), markov.logProbability("goodbye dad", 2), 1e-9);
+    assertEquals(-10.0 + Math.log(0.375), markov.logProbability("dad world", 2), 1e-9);
+  }
+
+  @Test
+  public void testScoreBatch() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ", 3);
+    corpus(500, 103).forEach(markov::process);
+    markov.setUnseenLogProbability(-12.0);
+
+    List<String> items = corpus(5000, 107);
+    double[] scores = markov.score(items);
+    assertEquals(items.size(), scores.length);
+    for (int i = 0; i < items.size(); i++) {
+      assertEquals(markov.logProbability(items.get(i), 3), scores[i], 0.0);
+    }
+  }
+
+  @Test
+  public void testGeneratePrefix() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ");
+    markov.process("hello world", 3.0);
+    markov.process("hello mom");
+    markov.process("goodbye");
+
+    int worlds = 0;
+    for (int i = 0; i < 4000; i++) {
+      String generated = markov.generate("hello", Integer.MAX_VALUE);
+      assertTrue(generated.equals("hello world") || generated.equals("hello mom"));
+      worlds += generated.equals("hello world") ? 1 : 0;
+    }
+    assertTrue(worlds > 2800 && worlds < 3200);
+    assertEquals("goodbye", markov.generate("goodbye", Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void testGeneratePrefixPastDepth() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ", 2);
+    corpus(500, 109).forEach(markov::process);
+
+    for (String prefix : new String[] {"hello world and mom dad", "zebra", "mom zebra dad"}) {
+      for (int i = 0; i < 50; i++) {
+        String generated = markov.generate(prefix, 2);
+        assertTrue(generated.startsWith(prefix));
+        if (!generated.equals(prefix)) {
+          assertTrue(generated.startsWith(prefix + " "));
+        }
+        assertTrue(markov.logProbability(generated, 2) > Double.NEGATIVE_INFINITY
+                   || prefix.contains("zebra"));
+      }
+    }
+  }
+
+  @Test
+  public void testGeneratePrefixUnseenInRoot() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ", 3);
+    markov.process("a b c d");
+    markov.process("x c e");
+
+    // No item starts with b, but b c has only ever been followed by d, while c alone has been
+    // followed by d and e alike.
+    Map<String, Integer> counts = new HashMap<>();
+    for (int i = 0; i < 200; i++) {
+      counts.merge(markov.generate("b c", 3), 1, Integer::sum);
+    }
+    assertEquals(ImmutableMap.of("b c d", 200), counts);
+    // Only the first link is unseen, and every link after it is certain.
+    markov.setUnseenLogProbability(-10.0);
+    assertEquals(-10.0, markov.logProbability("b c d", 3), 1e-9);
+  }
+
+  @Test
+  public void testGenerateBoundedLength() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ", 2);
+    corpus(300, 113).forEach(markov::process);
+
+    for (int i = 0; i < 500; i++) {
+      int length = markov.generate(2, 3, 5).split(" ").length;
+      assertTrue(length >= 3 && length <= 5);
+    }
+    assertEquals(12, markov.generate(1, 12, 12).split(" ").length);
+  }
+
+  @Test
+  public void testGenerateBoundedLengthDistribution() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ", 1);
+    markov.process("a b a", 2.0);
+    markov.process("b");
+    markov.process("a a b b");
+
+    Map<String, Long> counts = IntStream.range(0, 20000).mapToObj(i -> markov.generate(1, 2, 3))
+                                        .collect(Collectors.groupingBy(s -> s,
+                                                                       Collectors.counting()));
+    double total = counts.keySet().stream()
+                         .mapToDouble(item -> Math.exp(markov.logProbability(item, 1))).sum();
+    for (Map.Entry<String, Long> count : counts.entrySet()) {
+      int length = count.getKey().split(" ").length;
+      assertTrue(length >= 2 && length <= 3);
+      assertEquals(Math.exp(markov.logProbability(count.getKey(), 1)) / total,
+                   count.getValue() / 20000.0, 0.01);
+    }
+    assertTrue(counts.size() > 1);
+  }
+
+  @Test
+  public void testGenerateBoundedLengthAfterProcess() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ", 2);
+    markov.process("a b a", 2.0);
+    markov.process("b");
+    assertNotNull(markov.generate(2, 1, 4));
+    // Items processed after the probabilities were computed change some of their contexts and add
+    // new ones.
+    markov.process("a a b b");
+    markov.process("c a b", 0.5);
+
+    Map<String, Long> counts = IntStream.range(0, 20000).mapToObj(i -> markov.generate(2, 2, 4))
+                                        .collect(Collectors.groupingBy(s -> s,
+                                                                       Collectors.counting()));
+    double total = counts.keySet().stream()
+                         .mapToDouble(item -> Math.exp(markov.logProbability(item, 2))).sum();
+    for (Map.Entry<String, Long> count : counts.entrySet()) {
+      int length = count.getKey().split(" ").length;
+      assertTrue(length >= 2 && length <= 4);
+      assertEquals(Math.exp(markov.logProbability(count.getKey(), 2)) / total,
+                   count.getValue() / 20000.0, 0.01);
+    }
+    assertTrue(counts.containsKey("c a b"));
+  }
+
+  @Test
+  public void testGenerateBoundedLengthLimit() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ", 2);
+    markov.process("a b a b");
+    markov.process("b");
+    assertNotNull(markov.generate(3, 0, 1 << 16));
+    assertEquals(100, markov.generate(3, 100, 100).split(" ").length);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testGenerateBoundedLengthTooLong() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ");
+    markov.process("hello world");
+    markov.generate(3, 0, Integer.MAX_VALUE);
+  }
+
+  @Test
+  public void testGenerateBoundedLengthOutOfRange() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ");
+    markov.process("hello world");
+    assertNull(markov.generate(Integer.MAX_VALUE, 3, 5));
+    assertEquals("hello world", markov.generate(Integer.MAX_VALUE, 0, 2));
+
+    markov.process("hello world and mom");
+    assertEquals("hello world and mom", markov.generate(Integer.MAX_VALUE, 3, 5));
+  }
+
+  @Test
+  public void testSnapshot() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ");
+    assertNull(markov.published());
+    markov.process("hello world");
+    markov.process("mom and dad");
+    MarkovChain<String, String>.Snapshot snapshot = markov.snapshot();
+    assertSame(snapshot, markov.published());
+
+    markov.process("hello mom");
+    markov.process("goodbye world");
+    markov.process("mom and dad and goodbye");
+    markov.prune(2.0);
+    Set<String> seen = Sets.newHashSet("hello world", "mom and dad");
+    for (String generated : snapshot.generateAll(200)) {
+      assertTrue(generated, seen.contains(generated));
+    }
+    assertEquals(seen, Sets.newHashSet(snapshot.generateAll(200)));
+    assertNull(markov.get("goodbye"));
+    assertEquals(-1.0, markov.get("hello").children.getKeyWeight("world"), 0.0);
+
+    // A newer snapshot sees the chain as it is now, and the older one is left as it was.
+    MarkovChain<String, String>.Snapshot next = markov.snapshot();
+    assertSame(next, markov.published());
+    assertSame(markov.root.children, markov.root.children(next));
+    assertEquals(-1.0, markov.get("hello").children(next).getKeyWeight("world"), 0.0);
+    assertEquals(1.0, markov.get("hello").children(snapshot).getKeyWeight("world"), 0.0);
+    assertEquals(seen, Sets.newHashSet(snapshot.generateAll(200)));
+  }
+
+  @Test
+  public void testSnapshotCopiesOncePerEpoch() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ");
+    markov.process("hello world");
+    MarkovChain<String, String>.Node hello = markov.get("hello");
+    CompactWeightedList<String, MarkovChain<String, String>.Node> children = hello.children;
+    markov.process("hello mom");
+    assertSame(children, hello.children);
+
+    MarkovChain<String, String>.Snapshot snapshot = markov.snapshot();
+    markov.process("hello dad");
+    assertNotSame(children, hello.children);
+    assertSame(children, hello.children(snapshot));
+    CompactWeightedList<String, MarkovChain<String, String>.Node> copied = hello.children;
+    markov.process("hello and");
+    assertSame(copied, hello.children);
+    assertEquals(2, hello.children(snapshot).size());
+    assertEquals(4, hello.children.size());
+    assertEquals(2.0, markov.root.children(snapshot).getKeyWeight("hello"), 0.0);
+    assertEquals(4.0, markov.root.children.getKeyWeight("hello"), 0.0);
+  }
+
+  @Test
+  public void testSnapshotConcurrentReader() throws Exception {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ", 2);
+    Map<MarkovChain<String, String>.Snapshot, Integer> processed = new ConcurrentHashMap<>();
+    AtomicBoolean done = new AtomicBoolean();
+    AtomicReference<String> failure = new AtomicReference<>();
+    Thread reader = new Thread(() -> {
+      while (!done.get()) {
+        MarkovChain<String, String>.Snapshot snapshot = markov.published();
+        if (snapshot == null) {
+          continue;
+        }
+        int count = processed.get(snapshot);
+        for (String generated : snapshot.generateAll(20)) {
+          // Every item is three links of its own, so a consistent view only generates whole
+          // items that were processed before the snapshot was taken.
+          String[] links = generated.split(" ");
+          int item = Integer.parseInt(links[0].substring(1));
+          if (links.length != 3 || item >= count
+              || !generated.equals("a" + item + " b" + item + " c" + item)) {
+            failure.compareAndSet(null, generated + " from " + count + " items");
+          }
+        }
+      }
+    });
+    markov.process("a0 b0 c0");
+    processed.put(markov.snapshot(), 1);
+    reader.start();
+    for (int i = 1; i < 5000; i++) {
+      markov.process("a" + i + " b" + i + " c" + i);
+      markov.process("a" + (i / 2) + " b" + (i / 2) + " c" + (i / 2));
+      if (i % 50 == 0) {
+        MarkovChain<String, String>.Snapshot snapshot = markov.snapshot();
+        processed.put(snapshot, i + 1);
+      }
+    }
+    done.set(true);
+    reader.join();
+    assertNull(failure.get());
+  }
+
+  /**
+   * Builds a corpus of count sentences of random words, reproducible for the seed given.
+   */
+  static List<String> corpus(int count, long seed) {
+    Random random = new Random(seed);
+    List<String> corpus = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      List<String> sentence = new ArrayList<>();
+      int length = 1 + random.nextInt(8);
+      for (int j = 0; j < length; j++) {
+        sentence.add(WORDS[random.nextInt(WORDS.length)]);
+      }
+      corpus.add(Joiner.on(" ").join(sentence));
+    }
+    return corpus;
+  }
+
+  /**
+   * Lists every node of both tries, including their roots but not end nodes.
+   */
+  static <K, V> List<MarkovChain<K, V>.Node> nodes(MarkovChain<K, V> markov) {
+    List<MarkovChain<K, V>.Node> nodes = new ArrayList<>();
+    nodes.add(markov.root);
+    nodes.add(markov.mid);
+    for (int i = 0; i < nodes.size(); i++) {
+      nodes.get(i).children.stream().filter(child -> !child.isEnd).forEach(nodes::add);
+    }
+    return nodes;
+  }
+
+  static <K, V> void assertSameWeights(MarkovChain<K, V> expected, MarkovChain<K, V> actual) {
+    assertSameWeights(expected.root, actual.root);
+    assertSameWeights(expected.mid, actual.mid);
+  }
+
+  /**
+   * Asserts that the suffix of every node of both tries is the mid node of its context without the
+   * first link.
+   */
+  static <K, V> void assertSuffixLinks(MarkovChain<K, V> markov) {
+    assertSuffixLinks(markov, markov.root, new ArrayList<>());
+    assertSuffixLinks(markov, markov.mid, new ArrayList<>());
+  }
+
+  private static <K, V> void assertSuffixLinks(MarkovChain<K, V> markov,
+                                               MarkovChain<K, V>.Node node,
+                                               List<V> context) {
+    if (!context.isEmpty()) {
+      assertSame(markov.mid.get(context.subList(1, context.size())), node.suffix);
+    }
+    for (MarkovChain<K, V>.Node child : node.children) {
+      if (!child.isEnd) {
+        context.add(child.item);
+        assertSuffixLinks(markov, child, context);
+        context.remove(context.size() - 1);
+      }
+    }
+  }
+
+  private static <K, V> void assertSameWeights(MarkovChain<K, V>.Node expected,
+                                               MarkovChain<K, V>.Node actual) {
+    assertEquals(expected.children.size(), actual.children.size());
+    for (MarkovChain<K, V>.Node child : expected.children) {
+      assertEquals(expected.children.getKeyWeight(child.item),
+                   actual.children.getKeyWeight(child.item), 0.0);
+      if (!child.isEnd) {
+        assertSameWeights(child, actual.children.lookup(child.item));
+      }
+    }
+  }
+
+  /**
+   * Composer that splits on spaces, and throws after separating the links before a "!" link.
+   */
+  static Composer<String, String> failingComposer() {
+    Composer<String, String> words = MarkovChain.stringChain(" ").composer;
+    return new Composer<>(new StreamingComposer<String, String>() {
+      @Override
+      public void separate(String item, Consumer<? super String> sink) {
+        words.separate(item, link -> {
+          if (link.equals("!")) {
+            throw new IllegalArgumentException(item);
+          }
+          sink.accept(link);
+        });
+      }
+
+      @Override
+      public Appender<String, String> appender() {
+        return words.appender();
+      }
+    });
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Collection utility classes
+ * Copyright (C) 2016 Dane Zeke Liergaard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dzlier.markov;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.Sets;
+import java.util.Set;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link OffHeapMarkovChain}
+ */
+public class OffHeapMarkovChainTest
+    extends ChainVariantTestBase<OffHeapMarkovChain<String, String>, Integer> {
+
+  @Override
+  OffHeapMarkovChain<String, String> newChain(int maxDepth) {
+    return new OffHeapMarkovChain<>(composer(), maxDepth);
+  }
+
+  @Override
+  void close(OffHeapMarkovChain<String, String> chain) {
+    chain.close();
+  }
+
+  @Override
+  void process(OffHeapMarkovChain<String, String> chain, String item, double weight) {
+    chain.process(item, weight);
+  }
+
+  @Override
+  String generate(OffHeapMarkovChain<String, String> chain, int depth) {
+    return chain.generate(depth);
+  }
+
+  @Override
+  Integer root(OffHeapMarkovChain<String, String> chain, boolean inRoot) {
+    return inRoot ? OffHeapMarkovChain.ROOT : OffHeapMarkovChain.MID;
+  }
+
+  @Override
+  Integer child(OffHeapMarkovChain<String, String> chain, Integer node, String link,
+                boolean inRoot) {
+    return chain.child(node, link);
+  }
+
+  @Override
+  double weight(OffHeapMarkovChain<String, String> chain, Integer node, String link,
+                boolean inRoot) {
+    return link == null ? chain.endWeight(node) : chain.weight(node, link);
+  }
+
+  @Override
+  void assertSameWeights(MarkovChain<String, String> expected,
+                         OffHeapMarkovChain<String, String> chain) {
+    assertEquals(expected.nodeCount(), chain.nodeCount());
+    super.assertSameWeights(expected, chain);
+  }
+
+  @Test
+  public void testGrowsPastOneSegment() {
+    try (OffHeapMarkovChain<String, String> offHeap =
+             new OffHeapMarkovChain<>(MarkovChain.stringChain(" ").composer, 3)) {
+      for (int i = 0; i < 60000; i++) {
+        offHeap.process(i + " " + (i * 7 % 1000) + " " + i % 13);
+      }
+
+      assertTrue(offHeap.nodeCount() > 1 << 16);
+      assertEquals(60.0, offHeap.weight(OffHeapMarkovChain.MID, "993"), 0.0);
+      int node = offHeap.child(offHeap.child(OffHeapMarkovChain.ROOT, "59999"), "993");
+      assertEquals(offHeap.child(OffHeapMarkovChain.MID, "993"), offHeap.suffix(node));
+      assertEquals(3, offHeap.generate().split(" ").length);
+    }
+  }
+
+  @Test
+  public void testPickManyTransitions() {
+    try (OffHeapMarkovChain<String, String> offHeap =
+             new OffHeapMarkovChain<>(MarkovChain.stringChain(" ").composer, 2)) {
+      for (int i = 0; i < 500; i++) {
+        offHeap.process("a w" + i, i % 2 == 0 ? 3.0 : 1.0);
+      }
+      offHeap.process("a", 500.0);
+      assertPicks(offHeap, 700, 750.0 / 1500, 500.0 / 1500);
+
+      // Picks follow weights changed after the last pick.
+      for (int i = 500; i < 700; i++) {
+        offHeap.process("a w" + i, 2.0);
+      }
+      offHeap.process("a w1", 100.0);
+      assertPicks(offHeap, 700, 950.0 / 2000, 500.0 / 2000);
+    }
+  }
+
+  /**
+   * Asserts that picks after a, among links w0 to w(links - 1), pick even links and the end in
+   * the shares given.
+   */
+  private static void assertPicks(OffHeapMarkovChain<String, String> offHeap, int links,
+                                  double even, double end) {
+    int node = offHeap.child(OffHeapMarkovChain.ROOT, "a");
+    Set<Integer> evens = Sets.newHashSet();
+    for (int i = 0; i < links; i += 2) {
+      evens.add(offHeap.child(node, "w" + i));
+    }
+    int evenPicks = 0;
+    int endPicks = 0;
+    for (int i = 0; i < 20000; i++) {
+      int picked = offHeap.pick(node, i / 20000.0);
+      evenPicks += evens.contains(picked) ? 1 : 0;
+      endPicks += picked == OffHeapMarkovChain.END ? 1 : 0;
+    }
+    assertEquals(even, evenPicks / 20000.0, 0.001);
+    assertEquals(end, endPicks / 20000.0, 0.001);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testClosed() {
+    OffHeapMarkovChain<String, String> offHeap =
+        new OffHeapMarkovChain<>(MarkovChain.stringChain(" ").composer);
+    offHeap.process("hello world");
+    offHeap.close();
+    offHeap.close();
+    offHeap.generate();
+  }
+}
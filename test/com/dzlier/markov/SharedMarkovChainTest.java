@@ -0,0 +1,159 @@
+/*
+ * Collection utility classes
+ * Copyright (C) 2016 Dane Zeke Liergaard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.dzlier.markov;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.Sets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link SharedMarkovChain}
+ */
+public class SharedMarkovChainTest
+    extends ChainVariantTestBase<SharedMarkovChain<String, String>,
+                                 SharedMarkovChain<String, String>.Node> {
+
+  @Override
+  SharedMarkovChain<String, String> newChain(int maxDepth) {
+    return new SharedMarkovChain<>(composer(), maxDepth);
+  }
+
+  @Override
+  void process(SharedMarkovChain<String, String> chain, String item, double weight) {
+    chain.process(item, weight);
+  }
+
+  @Override
+  String generate(SharedMarkovChain<String, String> chain, int depth) {
+    return chain.generate(depth);
+  }
+
+  @Override
+  SharedMarkovChain<String, String>.Node root(SharedMarkovChain<String, String> chain,
+                                              boolean inRoot) {
+    return chain.trie;
+  }
+
+  @Override
+  SharedMarkovChain<String, String>.Node child(SharedMarkovChain<String, String> chain,
+                                               SharedMarkovChain<String, String>.Node node,
+                                               String link, boolean inRoot) {
+    return node.child(link);
+  }
+
+  @Override
+  double weight(SharedMarkovChain<String, String> chain,
+                SharedMarkovChain<String, String>.Node node, String link, boolean inRoot) {
+    return node.weight(link, inRoot);
+  }
+
+  @Override
+  void assertSameWeights(MarkovChain<String, String> expected,
+                         SharedMarkovChain<String, String> chain) {
+    super.assertSameWeights(expected, chain);
+    assertTrue(chain.nodeCount() < expected.nodeCount());
+    // Every list of weights is laid out as a MarkovChain node's transitions are, and the shared
+    // trie needs no more of them than the MarkovChain has nodes.
+    assertTrue(lists(chain.trie) <= expected.nodeCount());
+  }
+
+  @Test
+  public void testGenerateDistributionBelowMaxDepth() {
+    MarkovChain<String, String> markov = MarkovChain.stringChain(" ", 3);
+    SharedMarkovChain<String, String> shared = new SharedMarkovChain<>(markov.composer, 3);
+    for (String item : new String[] {"a b a", "b", "a a b b", "b a b c"}) {
+      markov.process(item);
+      shared.process(item);
+    }
+    markov.process("a c", 2.5);
+    shared.process("a c", 2.5);
+
+    Map<String, Long> expected = IntStream.range(0, 40000).mapToObj(i -> markov.generate(2))
+                                          .collect(Collectors.groupingBy(s -> s,
+                                                                         Collectors.counting()));
+    Map<String, Long> counts = IntStream.range(0, 40000).mapToObj(i -> shared.generate(2))
+                                        .collect(Collectors.groupingBy(s -> s,
+                                                                       Collectors.counting()));
+    for (String item : Sets.union(expected.keySet(), counts.keySet())) {
+      assertEquals(expected.getOrDefault(item, 0L) / 40000.0,
+                   counts.getOrDefault(item, 0L) / 40000.0, 0.015);
+    }
+  }
+
+  @Test
+  public void testGenerateDepthOne() {
+    SharedMarkovChain<String, String> shared =
+        new SharedMarkovChain<>(MarkovChain.stringChain(" ").composer, 1);
+    shared.process("hello world");
+
+    // Hello only starts items, so past the first link generation only picks world or the end.
+    for (int i = 0; i < 100; i++) {
+      String generated = shared.generate(1);
+      assertTrue(generated.matches("hello( world)*"));
+    }
+    assertSame(shared.trie, shared.get("world").suffix);
+    assertEquals(0.0, shared.trie.weight("world", true), 0.0);
+    assertEquals(1.0, shared.trie.weight("world", false), 0.0);
+  }
+
+  /**
+   * @return Number of lists of weights held by node and its descendants.
+   */
+  private static int lists(SharedMarkovChain<String, String>.Node node) {
+    Set<SharedMarkovChain<String, String>.Node> children = Sets.newIdentityHashSet();
+    int lists = 0;
+    for (List<SharedMarkovChain<String, String>.Node> weights : Arrays.asList(node.starts,
+                                                                              node.children)) {
+      if (weights != null) {
+        children.addAll(weights);
+        lists++;
+      }
+    }
+    for (SharedMarkovChain<String, String>.Node child : children) {
+      if (child.item != null) {
+        lists += lists(child);
+      }
+    }
+    return lists;
+  }
+
+  @Test
+  public void testProcessAfterFailedSeparate() {
+    SharedMarkovChain<String, String> shared =
+        new SharedMarkovChain<>(MarkovChainTest.failingComposer());
+    try {
+      shared.process("hello world !");
+    } catch (IllegalArgumentException expected) {
+      // Links separated before the failure must not reach the next item.
+    }
+    shared.process("goodbye");
+
+    for (int i = 0; i < 20; i++) {
+      assertEquals("goodbye", shared.generate());
+    }
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Collection utility classes
+ * Copyright (C) 2016 Dane Zeke Liergaard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.dzlier.weight;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unit tests for {@link CompactWeightedList}
+ */
+public class CompactWeightedListTest {
+
+  private static final int COUNT = CompactWeightedList.SMALL * 4;
+
+  private CompactWeightedList<Integer, String> list;
+
+  @Before
+  public void setup() {
+    list = new CompactWeightedList<>(Integer::valueOf);
+  }
+
+  @Test
+  public void testEmpty() {
+    assertTrue(list.isEmpty());
+    assertNull(list.lookup(1));
+    assertNull(list.random());
+    assertEquals(-1.0, list.getKeyWeight(1), 0.0);
+  }
+
+  @Test
+  public void testSingle() {
+    assertEquals("1", list.add(3.0, "1"));
+    assertEquals("1", list.add(2.0, 1, k -> { throw new AssertionError("Should not create"); }));
+
+    assertEquals(1, list.size());
+    assertEquals("1", list.random());
+    assertEquals(5.0, list.getKeyWeight(1), 0.0);
+    assertEquals(5.0, list.getTotal(), 0.0);
+  }
+
+  @Test
+  public void testGrowsThroughLayouts() {
+    // Every size from a single entry up to a hashed list, with every entry combined once.
+    for (int i = 0; i < COUNT; i++) {
+      list.add(1.0, Integer.toString(i));
+      assertEquals(i + 1, list.size());
+      for (int j = 0; j <= i; j++) {
+        assertEquals(Integer.toString(j), list.lookup(j));
+        assertEquals(1.0, list.getKeyWeight(j), 0.0);
+      }
+      assertNull(list.lookup(i + 1));
+    }
+    for (int i = 0; i < COUNT; i++) {
+      list.add((double) i, Integer.toString(i));
+      assertEquals(i + 1.0, list.getKeyWeight(i), 0.0);
+    }
+    assertEquals(COUNT, list.size());
+    assertEquals(COUNT * (COUNT + 1) / 2, list.getTotal(), 1e-9);
+    assertEquals(COUNT, new HashSet<>(list).size());
+  }
+
+  @Test
+  public void testNullKey() {
+    CompactWeightedList<String, String> nullable =
+        new CompactWeightedList<>(s -> s.isEmpty() ? null : s);
+    for (int i = 0; i < COUNT; i++) {
+      nullable.add(1.0, Integer.toString(i));
+      nullable.add(1.0, null, k -> "");
+    }
+    assertEquals(COUNT + 1, nullable.size());
+    assertEquals("", nullable.lookup(null));
+    assertEquals(COUNT, nullable.getKeyWeight(null), 0.0);
+  }
+
+  @Test
+  public void testRandom() {
+    for (int size : new int[] {2, COUNT}) {
+      setup();
+      for (int i = 0; i < size; i++) {
+        list.add(i + 1.0, Integer.toString(i));
+      }
+      Map<String, Integer> counts = new HashMap<>();
+      int picks = 200000;
+      for (int i = 0; i < picks; i++) {
+        counts.merge(list.random(), 1, Integer::sum);
+      }
+      for (int i = 0; i < size; i++) {
+        double expected = (i + 1.0) / list.getTotal();
+        assertEquals(expected, counts.getOrDefault(Integer.toString(i), 0) / (double) picks, 0.01);
+      }
+    }
+  }
+
+  @Test
+  public void testRemoveShrinksLayouts() {
+    for (int i = 0; i < COUNT; i++) {
+      list.add(i + 1.0, Integer.toString(i));
+    }
+    assertEquals(COUNT / 2, list.removeBelow(COUNT / 2 + 1).size());
+    assertEquals(COUNT / 2, list.size());
+    assertNull(list.lookup(0));
+    assertEquals(Integer.toString(COUNT - 1), list.lookup(COUNT - 1));
+
+    assertEquals(COUNT / 2 - 2, list.retainTop(2).size());
+    Set<String> top = new HashSet<>(list);
+    assertEquals(2, top.size());
+    assertTrue(top.contains(Integer.toString(COUNT - 1)));
+    assertTrue(top.contains(Integer.toString(COUNT - 2)));
+    assertEquals(2 * COUNT - 1, list.getTotal(), 1e-9);
+
+    assertTrue(list.removeIf(s -> s.equals(Integer.toString(COUNT - 1))));
+    assertEquals(1, list.size());
+    assertEquals(Integer.toString(COUNT - 2), list.random());
+    assertEquals(COUNT - 1, list.getTotal(), 1e-9);
+
+    list.compact();
+    for (int i = 0; i < COUNT; i++) {
+      list.add(1.0, Integer.toString(i));
+    }
+    assertEquals(COUNT, list.size());
+    assertEquals(COUNT, list.getKeyWeight(COUNT - 2), 0.0);
+  }
+
+  @Test
+  public void testCounted() {
+    CompactWeightedList<Integer, String> counted =
+        new CompactWeightedList<>(Integer::valueOf, true);
+    for (int i = 0; i < COUNT; i++) {
+      counted.add(1.0, Integer.toString(i % CompactWeightedList.SMALL));
+      counted.add(2.0, Integer.toString(i));
+    }
+    assertTrue(counted.isCounting());
+    assertEquals(6.0, counted.getKeyWeight(0), 0.0);
+    assertEquals(2.0, counted.getKeyWeight(COUNT - 1), 0.0);
+    assertEquals(3.0 * COUNT, counted.getTotal(), 0.0);
+
+    // A fractional weight switches the list to doubles without changing any weight.
+    counted.add(0.5, "0");
+    assertFalse(counted.isCounting());
+    assertEquals(6.5, counted.getKeyWeight(0), 0.0);
+    assertEquals(2.0, counted.getKeyWeight(COUNT - 1), 0.0);
+
+    // Removing the fractional weight lets the list count again once it is laid out anew.
+    counted.removeIf(s -> s.equals("0"));
+    assertTrue(counted.isCounting());
+    assertEquals(3.0 * COUNT + 0.5 - 6.5, counted.getTotal(), 0.0);
+
+    assertFalse(list.isCounting());
+    list.add(1.0, "1");
+    list.add(1.0, "2");
+    assertFalse(list.isCounting());
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Collection utility classes
+ * Copyright (C) 2016 Dane Zeke Liergaard
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.dzlier.weight;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Unit tests for {@link IndexedWeightedList}
+ */
+public class IndexedWeightedListTest {
+
+  private static final String A = "A";
+  private static final String B = "B";
+  private static final String C = "C";
+
+  private IndexedWeightedList<Character, String> list;
+
+  @Before
+  public void setup() {
+    list = new IndexedWeightedList<>(s -> s.charAt(0));
+  }
+
+  @Test
+  public void testNoWeightAdd() {
+    assertTrue(list.add(A));
+    assertEquals(list.size(), 1);
+  }
+
+  @Test
+  public void testWeightedAddNoCombine() {
+    assertEquals(A, list.add(3.0, A));
+    assertEquals(B, list.add(5.0, B));
+    assertEquals(C, list.add(1.0, C));
+    assertEquals(3, list.size());
+  }
+
+  @Test
+  public void testWeightedAddCombinesOnKey() {
+    assertEquals(A, list.add(3.0, A));
+    assertEquals(A, list.add(2.0, "Another"));
+
+    assertEquals(1, list.size());
+    assertEquals(5.0, list.getKeyWeight('A'), 0.0);
+  }
+
+  @Test
+  public void testFactoryAdd() {
+    assertEquals(A, list.add(3.0, 'A', k -> A));
+    assertEquals(A, list.add(2.0, 'A', k -> { throw new AssertionError("Should not create"); }));
+
+    assertEquals(1, list.size());
+    assertEquals(5.0, list.getKeyWeight('A'), 0.0);
+  }
+
+  @Test
+  public void testLookup() {
+    list.add(3.0, A);
+    list.add(5.0, B);
+
+    assertEquals(A, list.lookup('A'));
+    assertEquals(B, list.lookup('B'));
+    assertNull(list.lookup('C'));
+    assertEquals(-1.0, list.getKeyWeight('C'), 0.0);
+  }
+
+  @Test
+  public void testTop() {
+    assertEquals(C, list.add(6.0, C));
+    assertEquals(A, list.add(3.0, A));
+    assertEquals(A, list.add(5.0, A));
+
+    List<String> top = list.top(2);
+    assertEquals(2, top.size());
+    assertEquals(A, top.get(0));
+    assertEquals(C, top.get(1));
+  }
+
+  @Test
+  public void testRemoveAndCompact() {
+    list.add(3.0, A);
+    list.add(1.0, B);
+    list.add(5.0, C);
+
+    assertEquals(1, list.retainTop(2).size());
+    assertNull(list.lookup('B'));
+    assertEquals(-1.0, list.getKeyWeight('B'), 0.0);
+    list.compact();
+    assertEquals(A, list.lookup('A'));
+    assertEquals(B, list.add(2.0, B));
+    assertEquals(3, list.size());
+  }
+}
@@ -20,8 +20,10 @@ package com.dzlier.weight;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import com.google.common.collect.Lists;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -104,9 +106,9 @@ public class WeightedListTest {
     list.add(5.0, B);
     list.add(1.0, C);
 
-    assertEquals(new Double(3.0), list.getWeight(A));
-    assertEquals(new Double(5.0), list.getWeight(B));
-    assertEquals(new Double(1.0), list.getWeight(C));
+    assertEquals(3.0, list.getWeight(A), 0.0);
+    assertEquals(5.0, list.getWeight(B), 0.0);
+    assertEquals(1.0, list.getWeight(C), 0.0);
   }
 
   @Test
@@ -115,8 +117,100 @@ public class WeightedListTest {
     list.add(5.0, B);
     list.add(1.0, C);
 
-    assertEquals(new Double(3.0), list.getWeight(s -> s.equals(A)));
-    assertEquals(new Double(5.0), list.getWeight(s -> s.equals(B)));
-    assertEquals(new Double(1.0), list.getWeight(s -> s.equals(C)));
+    assertEquals(3.0, list.getWeight(s -> s.equals(A)), 0.0);
+    assertEquals(5.0, list.getWeight(s -> s.equals(B)), 0.0);
+    assertEquals(1.0, list.getWeight(s -> s.equals(C)), 0.0);
+  }
+
+  @Test
+  public void testRandom() {
+    list.add(1.0, A);
+    list.add(3.0, B);
+
+    int picksOfB = 0;
+    for (int i = 0; i < 4000; i++) {
+      if (B.equals(list.random())) {
+        picksOfB++;
+      }
+    }
+    assertTrue(picksOfB > 2700 && picksOfB < 3300);
+  }
+
+  @Test
+  public void testRandomAfterAdd() {
+    list.add(1.0, A);
+    list.add(1.0, B);
+    list.random();
+    list.add(10000.0, C);
+
+    int picksOfC = 0;
+    for (int i = 0; i < 100; i++) {
+      if (C.equals(list.random())) {
+        picksOfC++;
+      }
+    }
+    assertTrue(picksOfC > 90);
+  }
+
+  @Test
+  public void testRandomEmptyAndSingle() {
+    assertNull(list.random());
+    list.add(2.0, A);
+    assertEquals(A, list.random());
+  }
+
+  @Test
+  public void testRandomUniform() {
+    list.add(1.0, A);
+    list.add(1.0, B);
+    list.add(2.0, C);
+
+    for (double uniform = 0.0; uniform < 1.0; uniform += 0.01) {
+      assertEquals(list.random(uniform), list.random(uniform));
+    }
+  }
+
+  @Test
+  public void testRemoveBelow() {
+    list.add(1.0, A);
+    list.add(3.0, B);
+    list.add(2.0, C);
+    list.random();
+
+    assertEquals(Lists.newArrayList(A, C), list.removeBelow(2.5));
+    assertEquals(1, list.size());
+    assertEquals(3.0, list.getTotal(), 0.0);
+    for (double uniform = 0.0; uniform < 1.0; uniform += 0.1) {
+      assertEquals(B, list.random(uniform));
+    }
+    assertTrue(list.removeBelow(1.0).isEmpty());
+  }
+
+  @Test
+  public void testRetainTop() {
+    list.add(1.0, A);
+    list.add(3.0, B);
+    list.add(2.0, C);
+    list.add(3.0, D);
+
+    assertEquals(Lists.newArrayList(A, C), list.retainTop(2));
+    assertEquals(Lists.newArrayList(B, D), list.top(2));
+    assertTrue(list.retainTop(5).isEmpty());
+    assertEquals(2, list.size());
+  }
+
+  @Test
+  public void testRetainTopDuplicateWeights() {
+    list.add(1.0, A);
+    list.add(2.0, B);
+    list.add(3.0, C);
+    list.add(1.0, D);
+    list.add(2.0, "E");
+    list.add(3.0, "F");
+
+    assertEquals(Lists.newArrayList(A, B, D, "E", "F"), list.retainTop(1));
+    assertEquals(Lists.newArrayList(C), Lists.newArrayList(list));
+    assertEquals(3.0, list.getTotal(), 0.0);
+    assertEquals(C, list.random());
   }
 }
@@ -55,18 +55,22 @@ public class WeightedTrieTest {
     assertTrue(trie.addChain(TWO, new String[]{A, D, C}));
     assertTrue(trie.addChain(THREE, new String[]{A, D}));
     assertEquals(A, trie.root.children.get(0).item);
-    assertEquals(SIX, trie.root.children.getWeight(node -> node.item.equals(A)));
+    assertEquals(SIX, trie.root.children.getWeight(node -> node.item.equals(A)), 0.0);
     assertEquals(B, trie.root.children.get(0).children.get(0).item);
-    assertEquals(ONE, trie.root.children.get(0).children.getWeight(node -> node.item.equals(B)));
+    assertEquals(ONE, trie.root.children.get(0).children.getWeight(node -> node.item.equals(B)),
+                 0.0);
     assertEquals(C, trie.root.children.get(0).children.get(0).children.get(0).item);
     assertEquals(ONE,
-        trie.root.children.get(0).children.get(0).children.getWeight(node -> node.item.equals(C)));
+        trie.root.children.get(0).children.get(0).children.getWeight(node -> node.item.equals(C)),
+        0.0);
 
     assertEquals(D, trie.root.children.get(0).children.get(1).item);
-    assertEquals(FIVE, trie.root.children.get(0).children.getWeight(node -> node.item.equals(D)));
+    assertEquals(FIVE, trie.root.children.get(0).children.getWeight(node -> node.item.equals(D)),
+                 0.0);
     assertEquals(C, trie.root.children.get(0).children.get(1).children.get(0).item);
     assertEquals(TWO,
-        trie.root.children.get(0).children.get(1).children.getWeight(node -> node.item.equals(C)));
+        trie.root.children.get(0).children.get(1).children.getWeight(node -> node.item.equals(C)),
+        0.0);
   }
 
   @Test